@@ -0,0 +1,175 @@
+import utils.AuditJournal;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Prints or summarizes the records of an audit journal written by {@link AuditJournal}.
+ *
+ * Usage: java AuditReader [--dir audit/bob] [--type receive] [--outcome replay]
+ *                         [--since 15m] [--peer 1a2b3c4d5e6f7a8b] [--nonce BASE64] [--summary]
+ * --since takes a duration (30s, 15m, 2h, 1d) or milliseconds since the epoch.
+ * --peer matches a prefix of the hex peer key id.
+ */
+public class AuditReader {
+
+    private static final String[] STAGES_RECEIVE = {"read", "verify", "decrypt", "write"};
+    private static final String[] STAGES_SEND = {"read", "encrypt", "serialize", "send"};
+    private static final String[] STAGES_RELAY = {"read", "verify", "re-wrap", "send"};
+
+    // Counts and stage timings for one type/outcome combination
+    private static class Summary {
+        byte type;
+        long count;
+        long bytes;
+        final List<int[]> stageMicros = new ArrayList<>();
+    }
+
+    public static void main(String[] args) {
+        String dir = "audit/bob";
+        String type = null;
+        String outcome = null;
+        long since = 0;
+        String peer = null;
+        String nonce = null;
+        boolean summary = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if ("--summary".equals(args[i])) {
+                summary = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                System.err.println("Missing value for " + args[i]);
+                return;
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--dir": dir = value; break;
+                case "--type": type = value; break;
+                case "--outcome": outcome = value; break;
+                case "--since": since = parseSince(value); break;
+                case "--peer": peer = value.toLowerCase(); break;
+                case "--nonce": nonce = value; break;
+                default:
+                    System.err.println("Unknown option: " + args[i - 1]);
+                    return;
+            }
+        }
+
+        String typeFilter = type;
+        String outcomeFilter = outcome;
+        long sinceFilter = since;
+        String peerFilter = peer;
+        String nonceFilter = nonce;
+        boolean printRecords = !summary;
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Map<String, Summary> summaries = new TreeMap<>();
+
+        try {
+            List<Path> segments = AuditJournal.segments(Paths.get(dir));
+            if (segments.isEmpty()) {
+                System.err.println("No audit journal segments in " + dir);
+                return;
+            }
+            for (Path segment : segments) {
+                AuditJournal.read(segment, record -> {
+                    if (typeFilter != null && !typeFilter.equals(record.typeName())) return;
+                    if (outcomeFilter != null && !outcomeFilter.equals(record.outcomeName())) return;
+                    if (record.time < sinceFilter) return;
+                    if (peerFilter != null && !peerKeyHex(record.peerKey).startsWith(peerFilter)) return;
+                    if (nonceFilter != null && !nonceFilter.equals(record.nonceBase64())) return;
+
+                    if (printRecords) {
+                        System.out.println(format.format(new Date(record.time))
+                                + " " + record.typeName() + " " + record.outcomeName()
+                                + " peer=" + peerKeyHex(record.peerKey)
+                                + " nonce=" + record.nonceBase64()
+                                + " size=" + record.size
+                                + " " + stages(record));
+                    } else {
+                        Summary s = summaries.computeIfAbsent(
+                                record.typeName() + " " + record.outcomeName(), k -> new Summary());
+                        s.type = record.type;
+                        s.count++;
+                        s.bytes += record.size;
+                        s.stageMicros.add(record.stageMicros.clone());
+                    }
+                });
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot read audit journal: " + e.getMessage());
+            return;
+        }
+
+        if (summary) {
+            printSummary(summaries);
+        }
+    }
+
+    private static void printSummary(Map<String, Summary> summaries) {
+        if (summaries.isEmpty()) {
+            System.out.println("No matching records.");
+            return;
+        }
+        for (Map.Entry<String, Summary> entry : summaries.entrySet()) {
+            Summary s = entry.getValue();
+            String[] names = stageNames(s.type);
+            System.out.printf("%-24s %8d records %12d bytes%n", entry.getKey(), s.count, s.bytes);
+            for (int stage = 0; stage < 4; stage++) {
+                int[] micros = new int[s.stageMicros.size()];
+                for (int i = 0; i < micros.length; i++) {
+                    micros[i] = s.stageMicros.get(i)[stage];
+                }
+                Arrays.sort(micros);
+                long total = 0;
+                for (int m : micros) total += m;
+                System.out.printf("    %-10s avg=%.2f ms p99=%.2f ms max=%.2f ms%n", names[stage],
+                        total / 1000.0 / micros.length,
+                        micros[Math.min(micros.length - 1, (int) Math.ceil(micros.length * 0.99) - 1)] / 1000.0,
+                        micros[micros.length - 1] / 1000.0);
+            }
+        }
+    }
+
+    private static String stages(AuditJournal.Record record) {
+        String[] names = stageNames(record.type);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 4; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(names[i]).append('=').append(String.format("%.2f", record.stageMicros[i] / 1000.0)).append("ms");
+        }
+        return sb.toString();
+    }
+
+    private static String[] stageNames(byte type) {
+        if (type == AuditJournal.TYPE_RECEIVE) return STAGES_RECEIVE;
+        if (type == AuditJournal.TYPE_RELAY) return STAGES_RELAY;
+        return STAGES_SEND;
+    }
+
+    private static String peerKeyHex(long peerKey) {
+        return String.format("%016x", peerKey);
+    }
+
+    private static long parseSince(String value) {
+        char unit = value.charAt(value.length() - 1);
+        long multiplier;
+        switch (unit) {
+            case 's': multiplier = 1000L; break;
+            case 'm': multiplier = 60_000L; break;
+            case 'h': multiplier = 3_600_000L; break;
+            case 'd': multiplier = 86_400_000L; break;
+            default: return Long.parseLong(value);
+        }
+        return System.currentTimeMillis() - Long.parseLong(value.substring(0, value.length() - 1)) * multiplier;
+    }
+}
@@ -0,0 +1,128 @@
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * A recently received file kept in memory for re-sending: the verified ciphertext (in
+ * {@link #getData()}, or off-heap), the AES key as wrapped for this receiver, and the SHA-256
+ * of the plaintext for duplicate detection.
+ */
+public class CachedFile extends MyFile {
+    private final String path;               // where the plaintext was saved
+    private ByteBuffer offHeapData;          // ciphertext when stored off-heap, null once released
+    private final int dataLength;
+    private final byte[] encryptedAESKey;    // AES key wrapped for this receiver
+    private final byte[] plaintextHash;
+    private final long savedLength;          // size and mtime of the saved file when it was cached
+    private final long savedModified;
+
+    public CachedFile(int id, String name, String path, byte[] encryptedFile, boolean offHeap,
+                      byte[] encryptedAESKey, byte[] plaintextHash) {
+        super(id, name, offHeap ? null : encryptedFile, extensionOf(name));
+        this.path = path;
+        File saved = new File(path);
+        this.savedLength = saved.length();
+        this.savedModified = saved.lastModified();
+        this.offHeapData = offHeap ? copyOffHeap(encryptedFile) : null;
+        this.dataLength = encryptedFile.length;
+        this.encryptedAESKey = encryptedAESKey;
+        this.plaintextHash = plaintextHash;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the ciphertext, copied onto the heap if it is stored off-heap, or null if the
+     * entry was evicted and its off-heap copy released.
+     */
+    public synchronized byte[] getEncryptedFile() {
+        if (getData() != null) return getData();
+        if (offHeapData == null) return null;
+        byte[] copy = new byte[offHeapData.capacity()];
+        offHeapData.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Frees the off-heap copy right away instead of waiting for a GC to collect the buffer.
+     * Called by the cache on eviction; synchronized with {@link #getEncryptedFile} so a buffer
+     * is never freed while it is being read.
+     */
+    synchronized void release() {
+        if (offHeapData == null) return;
+        ByteBuffer buffer = offHeapData;
+        offHeapData = null;
+        freeDirect(buffer);
+    }
+
+    public byte[] getEncryptedAESKey() {
+        return encryptedAESKey;
+    }
+
+    public byte[] getPlaintextHash() {
+        return plaintextHash;
+    }
+
+    /**
+     * Returns false if the saved file was deleted, or changed since it was cached.
+     */
+    public boolean isSavedCopyUnchanged() {
+        File saved = new File(path);
+        return saved.isFile() && saved.length() == savedLength && saved.lastModified() == savedModified;
+    }
+
+    /**
+     * Bytes this entry counts against the cache budget.
+     */
+    public long getSize() {
+        return sizeOf(dataLength, encryptedAESKey, plaintextHash);
+    }
+
+    static long sizeOf(int dataLength, byte[] encryptedAESKey, byte[] plaintextHash) {
+        return dataLength + (encryptedAESKey != null ? encryptedAESKey.length : 0) + plaintextHash.length;
+    }
+
+    private static ByteBuffer copyOffHeap(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return buffer;
+    }
+
+    // Unsafe.invokeCleaner frees a direct buffer immediately; without it the GC frees it later
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private static void freeDirect(ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) return;
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the GC
+        }
+    }
+
+    private static String extensionOf(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(dot + 1) : "";
+    }
+}
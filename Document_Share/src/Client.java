@@ -1,5 +1,4 @@
-import utils.KeyLoader;
-import utils.RSAUtils;
+import utils.TransferStats;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -8,9 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.KeyPair;
-import java.security.PrivateKey;
-import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
 
 public class Client {
 
@@ -24,39 +21,34 @@ public class Client {
     private static final String BOB_PUBLIC_KEY = "bob_public.key";
 
     public static void main(String[] args) {
-        new File("ClientFiles/").mkdirs();
-
-        try {
-            // Load or generate Alice's key pair
-            if (!KeyLoader.keysExist(ALICE_PUBLIC_KEY, ALICE_PRIVATE_KEY)) {
-                KeyPair keyPair = RSAUtils.generateKeyPair();
-                KeyLoader.saveKeys(keyPair, ALICE_PUBLIC_KEY, ALICE_PRIVATE_KEY);
-                System.out.println("Generated new RSA key pair for Alice.");
+        // Upload limits, see TransferLimits: --rate, --peer-rate, --peer host:port=N, --small-file-bytes
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!TransferLimits.applyOption(args[i], args[i + 1])) {
+                System.err.println("Unknown option: " + args[i]);
+                return;
             }
+        }
 
-            // Set Alice's private key (used for signing)
-            PrivateKey alicePrivateKey = KeyLoader.loadPrivateKey(ALICE_PRIVATE_KEY);
-            FileTransferHandler.setPrivateKey(alicePrivateKey);
-            System.out.println("Loaded Alice's private key.");
+        new File("ClientFiles/").mkdirs();
 
-            // Set Bob's public key (used for encrypting AES key)
-            if (new File(BOB_PUBLIC_KEY).exists()) {
-                PublicKey bobPublicKey = KeyLoader.loadPublicKey(BOB_PUBLIC_KEY);
-                FileTransferHandler.setPublicKey(bobPublicKey);
-                System.out.println("Loaded Bob's public key.");
-            } else {
-                System.err.println("Bob's public key not found. Cannot encrypt AES key.");
-                return;
-            }
+        // Keys are generated or loaded in the background; sends and receives wait for them
+        CompletableFuture<Void> keysReady = Startup.provisionKeys(
+                "Alice", ALICE_PUBLIC_KEY, ALICE_PRIVATE_KEY, BOB_PUBLIC_KEY, "audit/alice");
 
-        } catch (Exception e) {
-            System.err.println("Key loading error: " + e.getMessage());
+        // Listen before building the GUI; connections wait in the backlog until the accept loop runs
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(CLIENT_RECEIVE_PORT);
+        } catch (IOException e) {
+            System.err.println("Cannot listen on port " + CLIENT_RECEIVE_PORT + ": " + e.getMessage());
             return;
         }
 
+        ReceivePipeline receivePipeline = ReceivePipeline.createDefault();
+
         // GUI Setup
         JFrame jFrame = new JFrame("Alice");
-        jFrame.setSize(650, 500);  // Increased height for extra button
+        jFrame.setSize(650, 570);  // Increased height for extra button
         jFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         jFrame.setLayout(new BorderLayout(10, 10));
         jFrame.setLocationRelativeTo(null);
@@ -89,12 +81,16 @@ public class Client {
         jbSendFile.setBorder(BorderFactory.createLineBorder(new Color(220, 20, 60), 2));
         jbSendFile.setAlignmentX(Component.CENTER_ALIGNMENT);
 
-//        JButton jbSendBack = new JButton("Send Last Received File to Bob");
-//        jbSendBack.setFont(new Font("Arial", Font.BOLD, 20));
-//        jbSendBack.setBackground(new Color(60, 179, 113));
-//        jbSendBack.setForeground(Color.WHITE);
-//        jbSendBack.setBorder(BorderFactory.createLineBorder(new Color(46, 139, 87), 2));
-//        jbSendBack.setAlignmentX(Component.CENTER_ALIGNMENT);
+        JButton jbSendBack = new JButton("Send Last Received File to Bob");
+        jbSendBack.setFont(new Font("Arial", Font.BOLD, 20));
+        jbSendBack.setBackground(new Color(60, 179, 113));
+        jbSendBack.setForeground(Color.WHITE);
+        jbSendBack.setBorder(BorderFactory.createLineBorder(new Color(46, 139, 87), 2));
+        jbSendBack.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+        JButton jbLimits = new JButton("Upload Limits");
+        jbLimits.setFont(new Font("Arial", Font.PLAIN, 14));
+        jbLimits.setAlignmentX(Component.CENTER_ALIGNMENT);
 
         mainPanel.add(jlTitle);
         mainPanel.add(jlFileName);
@@ -103,12 +99,23 @@ public class Client {
         mainPanel.add(Box.createRigidArea(new Dimension(0, 10)));
         mainPanel.add(jbSendFile);
         mainPanel.add(Box.createRigidArea(new Dimension(0, 30)));
-//        mainPanel.add(jbSendBack);
+        mainPanel.add(jbSendBack);
+        mainPanel.add(Box.createRigidArea(new Dimension(0, 20)));
+        mainPanel.add(jbLimits);
         jFrame.add(mainPanel, BorderLayout.CENTER);
 
+        // Receive pipeline queue depths and upload usage, refreshed every second
+        JLabel jlStats = new JLabel(stats(receivePipeline));
+        jlStats.setFont(new Font("Arial", Font.PLAIN, 11));
+        jlStats.setBorder(new EmptyBorder(0, 10, 10, 10));
+        jFrame.add(jlStats, BorderLayout.SOUTH);
+        new Timer(1000, e -> jlStats.setText(stats(receivePipeline))).start();
+
         File[] fileToSend = new File[1];
         File[] lastReceivedFile = new File[1];
 
+        jbLimits.addActionListener(e -> TransferLimits.showDialog(jFrame));
+
         jbChooseFile.addActionListener(e -> {
             JFileChooser jFileChooser = new JFileChooser();
             jFileChooser.setDialogTitle("Choose a file to send");
@@ -124,49 +131,84 @@ public class Client {
                 jlFileName.setText("Please choose a file");
                 jlFileName.setForeground(Color.RED);
             } else {
+                // Send off the event thread so the window stays responsive
+                File file = fileToSend[0];
+                jbSendFile.setEnabled(false);
+                new Thread(() -> {
+                    try {
+                        FileTransferHandler.sendFile(file, SERVER_ADDRESS, SERVER_PORT);
+                        System.out.println("Alice sent = " + file.getName());
+                        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "File sent to server securely!"));
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage()));
+                    } finally {
+                        SwingUtilities.invokeLater(() -> jbSendFile.setEnabled(true));
+                    }
+                }, "send-file").start();
+            }
+        });
+
+        jbSendBack.addActionListener(e -> {
+            if (lastReceivedFile[0] == null || !lastReceivedFile[0].exists()) {
+                JOptionPane.showMessageDialog(null, "No received file to send.");
+                return;
+            }
+            File file = lastReceivedFile[0];
+            jbSendBack.setEnabled(false);
+            new Thread(() -> {
                 try {
-                    FileTransferHandler.sendFile(fileToSend[0], SERVER_ADDRESS, SERVER_PORT);
-                    System.out.println("Alice sent = " + fileToSend[0].getName());
-                    JOptionPane.showMessageDialog(null, "File sent to server securely!");
+                    FileTransferHandler.resendFile(file, SERVER_ADDRESS, SERVER_PORT);
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Sent last received file back to Bob securely!"));
                 } catch (IOException ex) {
                     ex.printStackTrace();
-                    JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage());
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage()));
+                } finally {
+                    SwingUtilities.invokeLater(() -> jbSendBack.setEnabled(true));
                 }
-            }
+            }, "send-file").start();
         });
 
-//        jbSendBack.addActionListener(e -> {
-//            if (lastReceivedFile[0] == null || !lastReceivedFile[0].exists()) {
-//                JOptionPane.showMessageDialog(null, "No received file to send.");
-//                return;
-//            }
-//            try {
-//                FileTransferHandler.sendFile(lastReceivedFile[0], SERVER_ADDRESS, SERVER_PORT);
-//                JOptionPane.showMessageDialog(null, "Sent last received file back to Bob securely!");
-//            } catch (IOException ex) {
-//                ex.printStackTrace();
-//                JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage());
-//            }
-//        });
-
+        // Sending needs the keys; the buttons stay disabled until they are ready
+        jbSendFile.setEnabled(false);
+        jbSendBack.setEnabled(false);
         jFrame.setVisible(true);
 
+        keysReady.whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                jlFileName.setText("Keys unavailable: " + error.getMessage());
+                jlFileName.setForeground(Color.RED);
+            } else {
+                jbSendFile.setEnabled(true);
+                jbSendBack.setEnabled(true);
+            }
+        }));
+
         // Start thread to receive responses from server
         new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(CLIENT_RECEIVE_PORT)) {
+            try (serverSocket) {
                 System.out.println("Client ready to receive files on port " + CLIENT_RECEIVE_PORT);
                 while (true) {
                     Socket socket = serverSocket.accept();
-                    File receivedFile = FileTransferHandler.receiveFile(socket, "ClientFiles/");
-                    if (receivedFile != null) {
-                        lastReceivedFile[0] = receivedFile;
-                        jlFileName.setText("Received file: " + receivedFile.getName());
-                        jlFileName.setForeground(new Color(34, 139, 34));
-                    }
+                    // Blocks while the pipeline is saturated, leaving new connections in the backlog
+                    receivePipeline.submit(socket, "ClientFiles/", receivedFile -> {
+                        // Called from a pipeline thread
+                        SwingUtilities.invokeLater(() -> {
+                            lastReceivedFile[0] = receivedFile;
+                            jlFileName.setText("Received file: " + receivedFile.getName());
+                            jlFileName.setForeground(new Color(34, 139, 34));
+                        });
+                    });
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }).start();
     }
+
+    private static String stats(ReceivePipeline receivePipeline) {
+        return "<html>" + receivePipeline.getStats() + "<br>" + TransferStats.format("scheduler.") + "</html>";
+    }
 }
@@ -0,0 +1,112 @@
+import utils.AuditJournal;
+import utils.KeyLoader;
+import utils.RSAUtils;
+import utils.TransferStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends one file to every recipient listed in a recipients file, using
+ * {@link FileTransferHandler#sendFileToAll}: the file is encrypted and signed once and only the
+ * AES key is wrapped per recipient.
+ *
+ * Each non-empty line of the recipients file is "host port public-key-file"; lines starting
+ * with '#' are ignored. Recipients verify the payload with the sender's public key.
+ *
+ * Usage: java FanOutSender --file report.pdf [--recipients recipients.txt]
+ *                          [--public-key alice_public.key] [--private-key alice_private.key]
+ *                          [--audit-dir audit/fanout] [--rate N] [--peer-rate N] [--peer host:port=N]
+ * The rate options limit the upload in bytes per second, see {@link TransferLimits}.
+ */
+public class FanOutSender {
+
+    public static void main(String[] args) {
+        String file = null;
+        String recipientsFile = "recipients.txt";
+        String publicKeyFile = "alice_public.key";
+        String privateKeyFile = "alice_private.key";
+        String auditDir = "audit/fanout";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--file": file = args[i + 1]; break;
+                case "--recipients": recipientsFile = args[i + 1]; break;
+                case "--public-key": publicKeyFile = args[i + 1]; break;
+                case "--private-key": privateKeyFile = args[i + 1]; break;
+                case "--audit-dir": auditDir = args[i + 1]; break;
+                default:
+                    if (!TransferLimits.applyOption(args[i], args[i + 1])) {
+                        System.err.println("Unknown option: " + args[i]);
+                        return;
+                    }
+            }
+        }
+
+        if (file == null || !new File(file).isFile()) {
+            System.err.println("Choose a file to send with --file.");
+            return;
+        }
+
+        List<Recipient> recipients;
+        try {
+            // Load or generate the sender's key pair
+            if (!KeyLoader.keysExist(publicKeyFile, privateKeyFile)) {
+                KeyPair keyPair = RSAUtils.generateKeyPair();
+                KeyLoader.saveKeys(keyPair, publicKeyFile, privateKeyFile);
+                System.out.println("Generated new RSA key pair in " + publicKeyFile + " and " + privateKeyFile + ".");
+            }
+            FileTransferHandler.setPrivateKey(KeyLoader.loadPrivateKey(privateKeyFile));
+            FileTransferHandler.setOwnPublicKey(KeyLoader.loadPublicKey(publicKeyFile));
+
+            recipients = readRecipients(recipientsFile);
+        } catch (Exception e) {
+            System.err.println("Cannot load keys or recipients: " + e.getMessage());
+            return;
+        }
+        if (recipients.isEmpty()) {
+            System.err.println("No recipients in " + recipientsFile);
+            return;
+        }
+
+        try {
+            AuditJournal.start(new File(auditDir));
+        } catch (IOException e) {
+            System.err.println("Audit journal disabled: " + e.getMessage());
+        }
+
+        try {
+            int delivered = FileTransferHandler.sendFileToAll(new File(file), recipients);
+            System.out.println("Delivered " + new File(file).getName() + " to " + delivered
+                    + " of " + recipients.size() + " recipients.");
+            System.out.println(TransferStats.format("scheduler."));
+        } catch (IOException e) {
+            System.err.println("Error sending file: " + e.getMessage());
+        } finally {
+            AuditJournal.stop();
+        }
+    }
+
+    private static List<Recipient> readRecipients(String recipientsFile) throws Exception {
+        List<Recipient> recipients = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(Paths.get(recipientsFile), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\\s+");
+            if (fields.length != 3) {
+                throw new IOException(recipientsFile + ":" + lineNumber + ": expected \"host port public-key-file\"");
+            }
+            recipients.add(new Recipient(fields[0], Integer.parseInt(fields[1]), KeyLoader.loadPublicKey(fields[2])));
+        }
+        return recipients;
+    }
+}
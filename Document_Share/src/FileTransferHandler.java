@@ -1,22 +1,41 @@
 import utils.AESUtils;
+import utils.AuditJournal;
+import utils.DurableFileWriter;
 import utils.FileUtils;
 import utils.RSAUtils;
+import utils.SharedNonceTable;
+import utils.TransferScheduler;
 
 import javax.crypto.SecretKey;
 import java.io.*;
+import java.nio.file.Files;
 import java.net.Socket;
 import java.security.*;
+import java.util.ArrayList;
 import java.util.Base64;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.*;
 
 public class FileTransferHandler {
 
     private static PrivateKey PRIVATE_KEY; // Receiver's private key
     private static PublicKey PUBLIC_KEY;   // Sender's public key
+    private static byte[] OWN_KEY_ID;      // Fingerprint of the receiver's public key, picks its key block
+    private static long PEER_KEY_ID;       // Short id of PUBLIC_KEY for the audit journal
 
-    private static final Set<String> usedNonces = new HashSet<>();
+    private static final Set<String> usedNonces = ConcurrentHashMap.newKeySet();
+    private static volatile SharedNonceTable sharedNonces; // replaces usedNonces when receivers share replay state
     private static final long ALLOWED_TIME_WINDOW_MS = 5 * 60 * 1000; // 5 minutes
+    private static final int FAN_OUT_THREADS = 32;
+    private static final int MAX_PAYLOAD_BYTES = Integer.getInteger("transfer.maxPayloadBytes", 256 * 1024 * 1024);
+
+    // Completed once the keys above are installed; see awaitKeys
+    private static volatile CompletableFuture<?> keysReady = CompletableFuture.completedFuture(null);
+
+    // Recently received files, for re-sending and duplicate detection (-Dcache.bytes, -Dcache.offHeap)
+    private static final ReceivedFileCache receivedFiles = new ReceivedFileCache(
+            Long.getLong("cache.bytes", 64L * 1024 * 1024), Boolean.getBoolean("cache.offHeap"));
 
     public static void setPrivateKey(PrivateKey key) {
         PRIVATE_KEY = key;
@@ -24,6 +43,51 @@ public class FileTransferHandler {
 
     public static void setPublicKey(PublicKey key) {
         PUBLIC_KEY = key;
+        PEER_KEY_ID = peerKeyId(key);
+    }
+
+    /**
+     * Sets the receiver's own public key, used to find its key block in multi-recipient payloads.
+     */
+    public static void setOwnPublicKey(PublicKey key) throws GeneralSecurityException {
+        OWN_KEY_ID = RSAUtils.fingerprint(key);
+    }
+
+    public static ReceivedFileCache getReceivedFileCache() {
+        return receivedFiles;
+    }
+
+    /**
+     * Makes sends and pipeline receives wait until ready completes, so connections can be
+     * accepted while keys are still being generated or loaded in the background.
+     */
+    public static void setKeysReady(CompletableFuture<?> ready) {
+        keysReady = ready;
+    }
+
+    /**
+     * Blocks until the keys are installed. Called by the public send methods and by the verify
+     * stage of ReceivePipeline; {@link #receiveFile} does not wait, so a warm-up can run while
+     * the gate is still closed.
+     */
+    static void awaitKeys() throws GeneralSecurityException {
+        CompletableFuture<?> ready = keysReady;
+        if (ready.isDone() && !ready.isCompletedExceptionally()) return;
+        try {
+            ready.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Interrupted while waiting for keys");
+        } catch (ExecutionException e) {
+            throw new GeneralSecurityException("Keys unavailable: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Shares replay protection with other receiver processes using the same table file.
+     */
+    public static void setSharedNonceTable(SharedNonceTable table) {
+        sharedNonces = table;
     }
 
     private static String generateNonce() {
@@ -32,7 +96,7 @@ public class FileTransferHandler {
         return Base64.getEncoder().encodeToString(nonceBytes);
     }
 
-    private static byte[] serializeObject(Object obj) throws IOException {
+    static byte[] serializeObject(Object obj) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
             oos.writeObject(obj);
@@ -40,122 +104,534 @@ public class FileTransferHandler {
         return baos.toByteArray();
     }
 
-    private static SecureFilePayload deserializePayload(byte[] data) throws IOException, ClassNotFoundException {
+    private static TransferEnvelope deserializePayload(byte[] data) throws IOException, ClassNotFoundException {
         try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
-            return (SecureFilePayload) ois.readObject();
+            Object payload = ois.readObject();
+            if (!(payload instanceof TransferEnvelope)) {
+                throw new InvalidObjectException("Unexpected payload type: " + payload.getClass().getName());
+            }
+            return (TransferEnvelope) payload;
+        }
+    }
+
+    private static long peerKeyId(PublicKey key) {
+        try {
+            return key == null ? 0 : AuditJournal.peerKeyId(RSAUtils.fingerprint(key));
+        } catch (GeneralSecurityException e) {
+            return 0;
         }
     }
 
+    // =================== AUDIT ===================
+
+    /**
+     * Maps a failed transfer step to the outcome recorded in the audit journal.
+     */
+    static byte outcomeOf(Exception e) {
+        if (e instanceof TransferRejectedException) return ((TransferRejectedException) e).getOutcome();
+        if (e instanceof ObjectStreamException || e instanceof ClassNotFoundException || e instanceof EOFException) {
+            return AuditJournal.REJECT_MALFORMED;
+        }
+        return AuditJournal.ERROR;
+    }
+
+    // stageNanos holds the four stage timings of the transfer; payload may be null
+    static void audit(byte type, byte outcome, long peerKey, TransferEnvelope payload, long[] stageNanos) {
+        AuditJournal.record(type, outcome, peerKey,
+                payload == null ? null : payload.getNonce(),
+                payload == null ? 0 : payload.getTimestamp(),
+                payload == null || payload.getEncryptedFile() == null ? 0 : payload.getEncryptedFile().length,
+                stageNanos[0], stageNanos[1], stageNanos[2], stageNanos[3]);
+    }
+
+    // Records the time since mark as the given stage and returns the new mark
+    private static long lap(long[] stageNanos, int stage, long mark) {
+        long now = System.nanoTime();
+        stageNanos[stage] = now - mark;
+        return now;
+    }
+
+    static void auditReceive(byte outcome, TransferEnvelope payload, long[] stageNanos) {
+        audit(AuditJournal.TYPE_RECEIVE, outcome, PEER_KEY_ID, payload, stageNanos);
+    }
+
     // =================== SENDER ===================
     public static void sendFile(File file, String host, int port) throws IOException {
-        try (Socket socket = new Socket(host, port);
-             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+        long[] stageNanos = new long[4];
+        int stage = 0;
+        long mark = System.nanoTime();
+        SecureFilePayload payload = null;
+        try {
+            awaitKeys();
+            mark = System.nanoTime();
 
             byte[] fileBytes = FileUtils.readFile(file.getAbsolutePath());
+            mark = lap(stageNanos, stage++, mark);
+
+            payload = buildPayload(file.getName(), fileBytes, System.currentTimeMillis());
+            mark = lap(stageNanos, stage++, mark);
+
+            // 6. Serialize and send
+            byte[] frame = serializeObject(payload);
+            mark = lap(stageNanos, stage++, mark);
+
+            sendFrame(frame, host, port);
+            lap(stageNanos, stage, mark);
 
-            // 1. Generate AES key and encrypt file
+            audit(AuditJournal.TYPE_SEND, AuditJournal.OK, PEER_KEY_ID, payload, stageNanos);
+
+        } catch (Exception e) {
+            lap(stageNanos, stage, mark);
+            audit(AuditJournal.TYPE_SEND, AuditJournal.ERROR, PEER_KEY_ID, payload, stageNanos);
+            throw new IOException("Failed to send file: " + e.getMessage(), e);
+        }
+    }
+
+    static SecureFilePayload buildPayload(String fileName, byte[] fileBytes, long timestamp) throws Exception {
+        // 1. Generate AES key and encrypt file
+        Key aesKey = AESUtils.generateKey();
+        byte[] encryptedFile = AESUtils.encrypt(fileBytes, (SecretKey) aesKey);
+
+        // 2. Encrypt AES key with receiver's RSA public key
+        byte[] encryptedAESKey = RSAUtils.encrypt(aesKey.getEncoded(), PUBLIC_KEY);
+
+        // 3. Generate nonce
+        String nonce = generateNonce();
+
+        // 4. Create unsigned payload
+        SecureFilePayload unsignedPayload = new SecureFilePayload(
+                fileName, encryptedFile, encryptedAESKey, timestamp, nonce, null
+        );
+
+        // 5. Sign the serialized payload (excluding signature)
+        byte[] dataToSign = serializeObject(unsignedPayload);
+        byte[] signature = RSAUtils.sign(dataToSign, PRIVATE_KEY);
+        unsignedPayload.setSignature(signature);
+
+        return unsignedPayload;
+    }
+
+    /**
+     * Sends one file to many recipients. The file is read, AES-encrypted and signed once; only
+     * the AES key is wrapped per recipient. The resulting frame is serialized once and the same
+     * buffer is streamed to all recipients concurrently.
+     *
+     * @return the number of recipients the file was delivered to
+     */
+    public static int sendFileToAll(File file, List<Recipient> recipients) throws IOException {
+        long[] sharedNanos = new long[4]; // the last stage is timed per recipient
+        int stage = 0;
+        long mark = System.nanoTime();
+        long[] peerKeys = new long[recipients.size()];
+        MultiRecipientPayload payload = null;
+        byte[] frame;
+        try {
+            awaitKeys();
+            mark = System.nanoTime();
+
+            byte[] fileBytes = FileUtils.readFile(file.getAbsolutePath());
+            mark = lap(sharedNanos, stage++, mark);
+
+            // 1. Generate AES key and encrypt file once
             Key aesKey = AESUtils.generateKey();
             byte[] encryptedFile = AESUtils.encrypt(fileBytes, (SecretKey) aesKey);
-            System.out.println("Genarated a AES key and encrypt the file");
 
-            // 2. Encrypt AES key with receiver's RSA public key
-            byte[] encryptedAESKey = RSAUtils.encrypt(aesKey.getEncoded(), PUBLIC_KEY);
-            System.out.println("Encrypt AES key with receiver's public Key");
-
-            // 3. Generate nonce and timestamp
-            String nonce = generateNonce();
-            long timestamp = System.currentTimeMillis();
+            // 2. Wrap the AES key for every recipient
+            List<MultiRecipientPayload.RecipientKeyBlock> keyBlocks = new ArrayList<>();
+            for (int i = 0; i < recipients.size(); i++) {
+                byte[] fingerprint = RSAUtils.fingerprint(recipients.get(i).getPublicKey());
+                peerKeys[i] = AuditJournal.peerKeyId(fingerprint);
+                keyBlocks.add(new MultiRecipientPayload.RecipientKeyBlock(
+                        fingerprint, RSAUtils.encrypt(aesKey.getEncoded(), recipients.get(i).getPublicKey())));
+            }
 
-            // 4. Create unsigned payload
-            SecureFilePayload unsignedPayload = new SecureFilePayload(
-                    file.getName(), encryptedFile, encryptedAESKey, timestamp, nonce, null
+            // 3-5. Nonce, timestamp and one signature over the whole envelope
+            payload = new MultiRecipientPayload(
+                    file.getName(), encryptedFile, keyBlocks, System.currentTimeMillis(), generateNonce(), null
             );
-            System.out.println("Create a payload with file name, encrypted file, encrypted AES key, timestamp, nonce");
+            payload.setSignature(RSAUtils.sign(serializeObject(payload), PRIVATE_KEY));
+            mark = lap(sharedNanos, stage++, mark);
 
-            // 5. Sign the serialized payload (excluding signature)
-            byte[] dataToSign = serializeObject(unsignedPayload);
-            byte[] signature = RSAUtils.sign(dataToSign, PRIVATE_KEY);
-            unsignedPayload.setSignature(signature);
-            System.out.println("Sign the payload with sender's private key");
+            // 6. Serialize once, shared by every recipient
+            frame = serializeObject(payload);
+            lap(sharedNanos, stage, mark);
 
-            // 6. Serialize and send
-            byte[] finalPayload = serializeObject(unsignedPayload);
-            out.writeInt(finalPayload.length);
-            out.write(finalPayload);
+        } catch (Exception e) {
+            lap(sharedNanos, stage, mark);
+            audit(AuditJournal.TYPE_FAN_OUT, AuditJournal.ERROR, 0, payload, sharedNanos);
+            throw new IOException("Failed to prepare file: " + e.getMessage(), e);
+        }
+        MultiRecipientPayload sent = payload;
+
+        ExecutorService senders = Executors.newFixedThreadPool(Math.max(1, Math.min(recipients.size(), FAN_OUT_THREADS)));
+        try {
+            List<Future<?>> sends = new ArrayList<>();
+            for (int i = 0; i < recipients.size(); i++) {
+                Recipient recipient = recipients.get(i);
+                long peerKey = peerKeys[i];
+                sends.add(senders.submit(() -> {
+                    // One record per recipient; the first three stages are shared
+                    long[] stageNanos = sharedNanos.clone();
+                    long start = System.nanoTime();
+                    try {
+                        sendFrame(frame, recipient.getHost(), recipient.getPort());
+                    } catch (IOException e) {
+                        lap(stageNanos, 3, start);
+                        audit(AuditJournal.TYPE_FAN_OUT, AuditJournal.ERROR, peerKey, sent, stageNanos);
+                        throw e;
+                    }
+                    lap(stageNanos, 3, start);
+                    audit(AuditJournal.TYPE_FAN_OUT, AuditJournal.OK, peerKey, sent, stageNanos);
+                    return null;
+                }));
+            }
+
+            int delivered = 0;
+            for (Future<?> send : sends) {
+                try {
+                    send.get();
+                    delivered++;
+                } catch (ExecutionException ignored) {
+                    // Recorded in the audit journal by the sending task
+                }
+            }
+            return delivered;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending file");
+        } finally {
+            senders.shutdownNow();
+        }
+    }
+
+    // Writes one length-prefixed frame, shaped by the transfer scheduler
+    static void sendFrame(byte[] frame, String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+             TransferScheduler.Flow flow = TransferScheduler.open(host + ":" + port, frame.length)) {
+            out.writeInt(frame.length);
+            flow.write(out, frame);
+        }
+    }
+
+    /**
+     * Sends a previously received file on to host:port, encrypted for the peer's public key.
+     * If the file is still in the received-file cache, its ciphertext is forwarded from memory
+     * and only the AES key is re-wrapped; otherwise the file is read and encrypted again like
+     * {@link #sendFile}.
+     */
+    public static void resendFile(File file, String host, int port) throws IOException {
+        // PUBLIC_KEY is read below, so wait for it here rather than in forwardPayload
+        try {
+            awaitKeys();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Failed to send file: " + e.getMessage(), e);
+        }
+        CachedFile cached = receivedFiles.get(file);
+        byte[] encryptedFile = cached != null ? cached.getEncryptedFile() : null;
+        if (encryptedFile == null || cached.getEncryptedAESKey() == null) {
+            // Not cached, or evicted since the lookup
+            sendFile(file, host, port);
+            return;
+        }
+        // Only the name, ciphertext and wrapped key are carried over; forwarding adds the rest
+        SecureFilePayload payload = new SecureFilePayload(
+                cached.getName(), encryptedFile, cached.getEncryptedAESKey(), 0, null, null
+        );
+        forwardPayload(payload, host, port, PUBLIC_KEY);
+    }
 
-            System.out.println("File sent securely.");
+    /**
+     * Sends a verified payload on to the next hop without decrypting the file body: the AES key
+     * is unwrapped with our private key and wrapped again for nextHopKey, and the payload gets a
+     * fresh nonce, timestamp and our own signature. The ciphertext itself is passed through.
+     */
+    public static void forwardPayload(TransferEnvelope payload, String host, int port, PublicKey nextHopKey) throws IOException {
+        // Nothing is read from disk, so the first stage stays 0
+        long[] stageNanos = new long[4];
+        int stage = 1;
+        long mark = System.nanoTime();
+        long peerKey = peerKeyId(nextHopKey);
+        SecureFilePayload forwarded = null;
+        try {
+            awaitKeys();
+            mark = System.nanoTime();
+
+            forwarded = rewrapPayload(payload, nextHopKey);
+            mark = lap(stageNanos, stage++, mark);
+
+            byte[] frame = serializeObject(forwarded);
+            mark = lap(stageNanos, stage++, mark);
+
+            sendFrame(frame, host, port);
+            lap(stageNanos, stage, mark);
+
+            audit(AuditJournal.TYPE_SEND, AuditJournal.OK, peerKey, forwarded, stageNanos);
 
         } catch (Exception e) {
-            e.printStackTrace();
-            throw new IOException("Failed to send file: " + e.getMessage());
+            lap(stageNanos, stage, mark);
+            audit(AuditJournal.TYPE_SEND, outcomeOf(e), peerKey, forwarded, stageNanos);
+            throw new IOException("Failed to forward file: " + e.getMessage(), e);
+        }
+    }
+
+    static SecureFilePayload rewrapPayload(TransferEnvelope payload, PublicKey nextHopKey) throws Exception {
+        // 1. Unwrap the AES key and wrap it for the next hop
+        Key aesKey = unwrapAESKey(payload);
+        byte[] encryptedAESKey = RSAUtils.encrypt(aesKey.getEncoded(), nextHopKey);
+
+        // 2. Same ciphertext, new nonce and timestamp
+        SecureFilePayload forwarded = new SecureFilePayload(
+                payload.getFileName(), payload.getEncryptedFile(), encryptedAESKey,
+                System.currentTimeMillis(), generateNonce(), null
+        );
+
+        // 3. Sign as ourselves; the next hop verifies with our public key
+        forwarded.setSignature(RSAUtils.sign(serializeObject(forwarded), PRIVATE_KEY));
+        return forwarded;
+    }
+
+    // =================== RELAY ===================
+    /**
+     * Receives one payload on socket, verifies it against the previous hop's public key and
+     * forwards it to host:port, re-wrapped for nextHopKey. Nothing is written to disk.
+     *
+     * @return true if the payload was accepted and forwarded
+     */
+    public static boolean relayFile(Socket socket, String host, int port, PublicKey nextHopKey) {
+        // Recorded against the upstream peer; stages are read, verify, re-wrap and send
+        long[] stageNanos = new long[4];
+        int stage = 0;
+        long mark = System.nanoTime();
+        TransferEnvelope payload = null;
+        try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
+
+            payload = readPayload(in);
+            mark = lap(stageNanos, stage++, mark);
+
+            verifyPayload(payload);
+            mark = lap(stageNanos, stage++, mark);
+
+            byte[] frame = serializeObject(rewrapPayload(payload, nextHopKey));
+            mark = lap(stageNanos, stage++, mark);
+
+            sendFrame(frame, host, port);
+            lap(stageNanos, stage, mark);
+
+            audit(AuditJournal.TYPE_RELAY, AuditJournal.OK, PEER_KEY_ID, payload, stageNanos);
+            return true;
+
+        } catch (Exception e) {
+            lap(stageNanos, stage, mark);
+            audit(AuditJournal.TYPE_RELAY, outcomeOf(e), PEER_KEY_ID, payload, stageNanos);
+            return false;
         }
     }
 
     // =================== RECEIVER ===================
     public static File receiveFile(Socket socket, String saveDir) {
+        long[] stageNanos = new long[4];
+        int stage = 0;
+        long mark = System.nanoTime();
+        TransferEnvelope payload = null;
         try (DataInputStream in = new DataInputStream(socket.getInputStream())) {
 
-            int length = in.readInt();
-            if (length <= 0) return null;
+            payload = readPayload(in);
+            mark = lap(stageNanos, stage++, mark);
 
-            byte[] receivedPayload = new byte[length];
-            in.readFully(receivedPayload);
+            verifyPayload(payload);
+            mark = lap(stageNanos, stage++, mark);
 
-            // 1. Deserialize payload
-            SecureFilePayload payload = deserializePayload(receivedPayload);
+            byte[] decryptedFile = decryptPayload(payload);
+            mark = lap(stageNanos, stage++, mark);
 
-            // 2. Check timestamp freshness
-            long now = System.currentTimeMillis();
-            if (Math.abs(now - payload.getTimestamp()) > ALLOWED_TIME_WINDOW_MS) {
-                System.err.println(" Rejected: Timestamp out of range.");
-                return null;
-            }
+            File file = savePayload(payload, decryptedFile, saveDir);
+            lap(stageNanos, stage, mark);
 
-            // 3. Check for replay attack using nonce
-            if (usedNonces.contains(payload.getNonce())) {
-                System.err.println("Rejected: Replay detected (nonce reused).");
-                return null;
-            }
+            auditReceive(AuditJournal.OK, payload, stageNanos);
+            return file;
 
-            // 4. Verify digital signature
-            SecureFilePayload tempPayload = new SecureFilePayload(
-                    payload.getFileName(),
-                    payload.getEncryptedFile(),
-                    payload.getEncryptedAESKey(),
-                    payload.getTimestamp(),
-                    payload.getNonce(),
-                    null
-            );
+        } catch (Exception e) {
+            lap(stageNanos, stage, mark);
+            auditReceive(outcomeOf(e), payload, stageNanos);
+            return null;
+        }
+    }
+
+    // The receive steps below are also run individually by the stages of ReceivePipeline.
+    // Rejections are thrown as TransferRejectedException with the outcome to record.
+
+    static TransferEnvelope readPayload(DataInputStream in) throws IOException, GeneralSecurityException {
+        return readPayload(in, readPayloadLength(in));
+    }
+
+    /**
+     * Reads and checks the length prefix of a frame, so the caller can reserve memory for it
+     * before {@link #readPayload(DataInputStream, int)} allocates the buffer.
+     */
+    static int readPayloadLength(DataInputStream in) throws IOException, GeneralSecurityException {
+        int length = in.readInt();
+        if (length <= 0) {
+            throw new TransferRejectedException(AuditJournal.REJECT_MALFORMED, "Invalid payload length " + length);
+        }
+        if (length > MAX_PAYLOAD_BYTES) {
+            // Never trust the length prefix enough to allocate it
+            throw new TransferRejectedException(AuditJournal.REJECT_OVERSIZED,
+                    "Payload length " + length + " exceeds limit of " + MAX_PAYLOAD_BYTES + " bytes");
+        }
+        return length;
+    }
+
+    static TransferEnvelope readPayload(DataInputStream in, int length) throws IOException, GeneralSecurityException {
+        byte[] receivedPayload = new byte[length];
+        in.readFully(receivedPayload);
+
+        // 1. Deserialize payload
+        try {
+            return deserializePayload(receivedPayload);
+        } catch (ClassNotFoundException | ObjectStreamException e) {
+            throw new TransferRejectedException(AuditJournal.REJECT_MALFORMED, "Malformed payload: " + e.getMessage());
+        }
+    }
+
+    static void verifyPayload(TransferEnvelope payload) throws IOException, GeneralSecurityException {
+        // 2. Check timestamp freshness
+        long now = System.currentTimeMillis();
+        if (Math.abs(now - payload.getTimestamp()) > ALLOWED_TIME_WINDOW_MS) {
+            throw new TransferRejectedException(AuditJournal.REJECT_TIMESTAMP, "Timestamp out of range");
+        }
+
+        // 3. Check for replay attack using nonce
+        if (isNonceUsed(payload.getNonce())) {
+            throw new TransferRejectedException(AuditJournal.REJECT_REPLAY, "Replay detected (nonce reused)");
+        }
+
+        // 4. Verify digital signature
+        byte[] dataToVerify = serializeObject(payload.withoutSignature());
+        boolean isVerified = RSAUtils.verify(dataToVerify, payload.getSignature(), PUBLIC_KEY);
+        if (!isVerified) {
+            throw new TransferRejectedException(AuditJournal.REJECT_SIGNATURE, "Invalid RSA signature");
+        }
 
-            byte[] dataToVerify = serializeObject(tempPayload);
-            boolean isVerified = RSAUtils.verify(dataToVerify, payload.getSignature(), PUBLIC_KEY);
-            if (!isVerified) {
-                System.err.println("Rejected: Invalid RSA signature.");
-                return null;
+        // Transfers are verified concurrently, so claim the nonce atomically
+        if (!claimNonce(payload)) {
+            throw new TransferRejectedException(AuditJournal.REJECT_REPLAY, "Replay detected (nonce reused)");
+        }
+    }
+
+    private static boolean isNonceUsed(String nonce) {
+        SharedNonceTable table = sharedNonces;
+        return table != null ? table.contains(nonce) : usedNonces.contains(nonce);
+    }
+
+    // Returns false if the nonce was already used
+    private static boolean claimNonce(TransferEnvelope payload) {
+        SharedNonceTable table = sharedNonces;
+        if (table == null) {
+            return usedNonces.add(payload.getNonce());
+        }
+        // Past the time window the timestamp check rejects the payload anyway
+        long expiresAt = payload.getTimestamp() + 2 * ALLOWED_TIME_WINDOW_MS;
+        return table.register(payload.getNonce(), expiresAt);
+    }
+
+    static byte[] decryptPayload(TransferEnvelope payload) throws Exception {
+        // 5. Decrypt AES key using receiver's private key
+        Key aesKey = unwrapAESKey(payload);
+
+        // 6. Decrypt file content
+        return AESUtils.decrypt(payload.getEncryptedFile(), (SecretKey) aesKey);
+    }
+
+    private static Key unwrapAESKey(TransferEnvelope payload) throws GeneralSecurityException {
+        if (OWN_KEY_ID == null && payload instanceof MultiRecipientPayload) {
+            // Own key unknown: try every key block until one decrypts
+            for (MultiRecipientPayload.RecipientKeyBlock block : ((MultiRecipientPayload) payload).getRecipients()) {
+                try {
+                    return AESUtils.getKeyFromBytes(RSAUtils.decrypt(block.getEncryptedAESKey(), PRIVATE_KEY));
+                } catch (GeneralSecurityException ignored) {
+                }
             }
-            System.out.println("Signature verified by sender's public key");
+            throw new TransferRejectedException(AuditJournal.REJECT_NO_KEY,
+                    "No key block could be decrypted with the receiver's private key");
+        }
 
-            // 5. Decrypt AES key using receiver's private key
-            byte[] aesKeyBytes = RSAUtils.decrypt(payload.getEncryptedAESKey(), PRIVATE_KEY);
-            Key aesKey = AESUtils.getKeyFromBytes(aesKeyBytes);
-            System.out.println("Decrypt AES key using receiver's private key");
+        byte[] encryptedAESKey = payload.getEncryptedAESKeyFor(OWN_KEY_ID);
+        if (encryptedAESKey == null) {
+            throw new TransferRejectedException(AuditJournal.REJECT_NO_KEY, "Payload has no key block for this receiver");
+        }
+        return AESUtils.getKeyFromBytes(RSAUtils.decrypt(encryptedAESKey, PRIVATE_KEY));
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static boolean hasContent(File file, byte[] plaintextHash) {
+        try {
+            return MessageDigest.isEqual(sha256(Files.readAllBytes(file.toPath())), plaintextHash);
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-            // 6. Decrypt file content
-            byte[] decryptedFile = AESUtils.decrypt(payload.getEncryptedFile(), (SecretKey) aesKey);
-            System.out.println("Decrypt file content");
+    static File savePayload(TransferEnvelope payload, byte[] decryptedFile, String saveDir) throws IOException {
+        String fileName = FileUtils.sanitizeFileName(payload.getFileName());
+        byte[] plaintextHash = sha256(decryptedFile);
+        File saveDirFile = new File(saveDir).getAbsoluteFile();
 
-            // 7. Save file
-            usedNonces.add(payload.getNonce());
-            File outputFile = new File(saveDir, payload.getFileName());
-            FileUtils.writeFile(outputFile.getAbsolutePath(), decryptedFile);
+        File savedCopy = findSavedCopy(fileName, plaintextHash, saveDirFile);
+        if (savedCopy != null) return savedCopy;
 
-            System.out.println("File received and saved: " + outputFile.getAbsolutePath());
+        // 7. Save file (sanitized name, published atomically once it is on disk)
+        File outputFile = DurableFileWriter.write(saveDirFile, fileName, decryptedFile);
+        cacheReceived(outputFile, fileName, payload, plaintextHash);
+        return outputFile;
+    }
+
+    /**
+     * Saves a verified, decrypted payload without waiting for the disk sync. The future
+     * completes once the file is durably published (or at once for a duplicate); the cache
+     * insert and anything chained on the future run on executor, never on the committer thread.
+     */
+    static CompletableFuture<File> savePayloadAsync(TransferEnvelope payload, byte[] decryptedFile, String saveDir,
+                                                    Executor executor) throws IOException {
+        String fileName = FileUtils.sanitizeFileName(payload.getFileName());
+        byte[] plaintextHash = sha256(decryptedFile);
+        File saveDirFile = new File(saveDir).getAbsoluteFile();
+
+        File savedCopy = findSavedCopy(fileName, plaintextHash, saveDirFile);
+        if (savedCopy != null) return CompletableFuture.completedFuture(savedCopy);
+
+        return DurableFileWriter.writeAsync(saveDirFile, fileName, decryptedFile).thenApplyAsync(outputFile -> {
+            cacheReceived(outputFile, fileName, payload, plaintextHash);
             return outputFile;
+        }, executor);
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.err.println("Error receiving file: " + e.getMessage());
-            return null;
+    // Same name and content as a file received recently: keep the saved copy, but only if it
+    // still holds that content; it may have been edited since
+    private static File findSavedCopy(String fileName, byte[] plaintextHash, File saveDirFile) {
+        CachedFile duplicate = receivedFiles.findDuplicate(plaintextHash, fileName, saveDirFile);
+        if (duplicate == null) return null;
+
+        File savedCopy = new File(duplicate.getPath());
+        if (hasContent(savedCopy, plaintextHash)) {
+            receivedFiles.recordDuplicate(duplicate);
+            return savedCopy;
         }
+        receivedFiles.invalidate(duplicate);
+        return null;
+    }
+
+    // Keep the verified ciphertext so the file can be re-sent without re-encrypting it
+    private static void cacheReceived(File outputFile, String fileName, TransferEnvelope payload, byte[] plaintextHash) {
+        receivedFiles.put(outputFile, fileName, payload.getEncryptedFile(),
+                payload.getEncryptedAESKeyFor(OWN_KEY_ID), plaintextHash);
     }
 }
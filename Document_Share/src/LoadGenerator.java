@@ -0,0 +1,427 @@
+import utils.AuditJournal;
+import utils.RSAUtils;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator and soak test for the receive path.
+ *
+ * Simulated senders push files over loopback to receiver threads that call
+ * {@link FileTransferHandler#receiveFile}. After the load phase, adversarial traffic (replayed
+ * nonces, stale timestamps, flipped signature bits, oversized length prefixes) is sent and
+ * every attack is checked to be rejected. The report covers throughput, end-to-end latency
+ * percentiles, receiver service time, allocation per transfer and GC activity.
+ *
+ * Latency is measured from each transfer's scheduled start, so a stalled receiver shows up
+ * in the percentiles instead of silently lowering the send rate.
+ *
+ * Usage: java LoadGenerator [--senders 8] [--receivers 8] [--transfers 500 | --duration 60]
+ *                           [--rate 0] [--size fixed:64k | uniform:1k-1m | lognormal:64k]
+ *                           [--attacks 20] [--audit-dir DIR]
+ * A rate of 0 sends as fast as the senders can (closed loop). With --audit-dir, every transfer
+ * is also recorded in the audit journal, to measure its overhead.
+ */
+public class LoadGenerator {
+
+    private static final long NANOS_PER_MS = 1_000_000L;
+
+    private static final String HOST = InetAddress.getLoopbackAddress().getHostAddress();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // Outcome of one receiveFile call, measured on the receiver thread
+    private static class Outcome {
+        final File file;            // null when the payload was rejected
+        final long serviceNanos;
+        final long allocatedBytes;  // -1 when allocation tracking is unavailable
+        final long finishedAt;
+
+        Outcome(File file, long serviceNanos, long allocatedBytes, long finishedAt) {
+            this.file = file;
+            this.serviceNanos = serviceNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.finishedAt = finishedAt;
+        }
+    }
+
+    private interface SizeDistribution {
+        int next(Random random);
+    }
+
+    private static final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        int senders = 8;
+        int receivers = 8;
+        int transfers = 500;
+        int durationSeconds = 0;
+        double rate = 0;
+        String sizeSpec = "fixed:64k";
+        int attacks = 20;
+        String auditDir = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--senders": senders = Integer.parseInt(args[i + 1]); break;
+                case "--receivers": receivers = Integer.parseInt(args[i + 1]); break;
+                case "--transfers": transfers = Integer.parseInt(args[i + 1]); break;
+                case "--duration": durationSeconds = Integer.parseInt(args[i + 1]); break;
+                case "--rate": rate = Double.parseDouble(args[i + 1]); break;
+                case "--size": sizeSpec = args[i + 1]; break;
+                case "--attacks": attacks = Integer.parseInt(args[i + 1]); break;
+                case "--audit-dir": auditDir = args[i + 1]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+        SizeDistribution sizes = parseSizes(sizeSpec);
+
+        // One key pair plays both sides: sign/decrypt with the private key, verify/encrypt with the public key
+        KeyPair keyPair = RSAUtils.generateKeyPair();
+        FileTransferHandler.setPrivateKey(keyPair.getPrivate());
+        FileTransferHandler.setPublicKey(keyPair.getPublic());
+
+        if (auditDir != null) {
+            AuditJournal.start(new File(auditDir));
+        }
+
+        Path saveDir = Files.createTempDirectory("loadgen");
+        ServerSocket serverSocket = new ServerSocket(0, 512, InetAddress.getByName(HOST));
+        int port = serverSocket.getLocalPort();
+        ExecutorService receiverPool = startReceivers(serverSocket, receivers, saveDir.toString());
+
+        try {
+            runLoad(port, senders, transfers, durationSeconds, rate, sizes, sizeSpec);
+            if (attacks > 0) {
+                runAttacks(port, attacks);
+            }
+        } finally {
+            serverSocket.close();
+            receiverPool.shutdownNow();
+            deleteRecursively(saveDir.toFile());
+        }
+    }
+
+    // =================== Load phase ===================
+
+    private static void runLoad(int port, int senders, int transfers, int durationSeconds, double rate,
+                                SizeDistribution sizes, String sizeSpec) throws Exception {
+        byte[] randomData = new byte[16 * 1024 * 1024];
+        new Random(42).nextBytes(randomData);
+
+        Map<String, Long> scheduledAt = new ConcurrentHashMap<>();
+        AtomicInteger nextTransfer = new AtomicInteger();
+        AtomicInteger attempted = new AtomicInteger();
+        AtomicInteger sendErrors = new AtomicInteger();
+        AtomicLong bytesSent = new AtomicLong();
+        long intervalNanos = rate > 0 ? (long) (1_000_000_000L / rate) : 0;
+        int limit = durationSeconds > 0 ? Integer.MAX_VALUE : transfers;
+
+        GcSnapshot gcBefore = GcSnapshot.take();
+        long start = System.nanoTime();
+        long deadline = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+
+        ExecutorService senderPool = Executors.newFixedThreadPool(senders);
+        for (int s = 0; s < senders; s++) {
+            senderPool.submit(() -> {
+                Random random = new Random();
+                while (true) {
+                    int index = nextTransfer.getAndIncrement();
+                    long scheduled = intervalNanos > 0 ? start + index * intervalNanos : System.nanoTime();
+                    if (index >= limit || scheduled >= deadline) {
+                        return;
+                    }
+                    sleepUntil(scheduled);
+                    attempted.incrementAndGet();
+
+                    String name = "load-" + index + ".bin";
+                    int size = Math.min(sizes.next(random), randomData.length);
+                    byte[] data = Arrays.copyOfRange(randomData, 0, size);
+                    scheduledAt.put(name, scheduled);
+                    try {
+                        SecureFilePayload payload = FileTransferHandler.buildPayload(name, data, System.currentTimeMillis());
+                        FileTransferHandler.sendFrame(FileTransferHandler.serializeObject(payload), HOST, port);
+                        bytesSent.addAndGet(size);
+                    } catch (Exception e) {
+                        scheduledAt.remove(name);
+                        sendErrors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        senderPool.shutdown();
+        senderPool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        int expected = attempted.get() - sendErrors.get();
+        List<Long> latencies = new ArrayList<>();
+        List<Long> serviceTimes = new ArrayList<>();
+        long allocated = 0;
+        int rejected = 0;
+        for (int received = 0; received < expected; received++) {
+            Outcome outcome = outcomes.poll(60, TimeUnit.SECONDS);
+            if (outcome == null) {
+                System.err.println("Timed out waiting for " + (expected - received) + " transfers.");
+                break;
+            }
+            serviceTimes.add(outcome.serviceNanos);
+            allocated += Math.max(0, outcome.allocatedBytes);
+            if (outcome.file == null) {
+                rejected++;
+                continue;
+            }
+            Long scheduled = scheduledAt.get(outcome.file.getName());
+            if (scheduled != null) latencies.add(outcome.finishedAt - scheduled);
+            outcome.file.delete();
+        }
+        long elapsed = System.nanoTime() - start;
+        GcSnapshot gc = GcSnapshot.take().minus(gcBefore);
+
+        double seconds = elapsed / 1e9;
+        System.out.println();
+        System.out.println("=== Load: " + senders + " senders, size " + sizeSpec
+                + (intervalNanos > 0 ? ", target " + rate + " transfers/s" : ", closed loop") + " ===");
+        System.out.printf("transfers: %d ok, %d rejected, %d send errors in %.2f s%n",
+                latencies.size(), rejected, sendErrors.get(), seconds);
+        System.out.printf("throughput: %.1f transfers/s, %.2f MB/s%n",
+                latencies.size() / seconds, bytesSent.get() / seconds / (1024 * 1024));
+        System.out.println("end-to-end latency ms: " + percentiles(latencies));
+        System.out.println("receiver service ms:   " + percentiles(serviceTimes));
+        if (!serviceTimes.isEmpty()) {
+            System.out.printf("allocated per receive: %.1f KB%n", allocated / 1024.0 / serviceTimes.size());
+        }
+        System.out.println("gc: " + gc);
+    }
+
+    // =================== Attack phase ===================
+
+    private static void runAttacks(int port, int count) throws Exception {
+        System.out.println();
+        System.out.println("=== Adversarial traffic: " + count + " of each ===");
+        byte[] data = new byte[4096];
+        new Random(7).nextBytes(data);
+        boolean allRejected = true;
+
+        for (String attack : new String[]{"replayed-nonce", "stale-timestamp", "flipped-signature", "oversized-length"}) {
+            List<Long> costs = new ArrayList<>();
+            long allocated = 0;
+            int accepted = 0;
+
+            for (int i = 0; i < count; i++) {
+                String name = "attack-" + attack + "-" + i + ".bin";
+                long now = System.currentTimeMillis();
+                switch (attack) {
+                    case "replayed-nonce": {
+                        byte[] frame = FileTransferHandler.serializeObject(FileTransferHandler.buildPayload(name, data, now));
+                        FileTransferHandler.sendFrame(frame, HOST, port);
+                        Outcome original = nextOutcome();
+                        if (original.file != null) original.file.delete();
+                        FileTransferHandler.sendFrame(frame, HOST, port);
+                        break;
+                    }
+                    case "stale-timestamp": {
+                        SecureFilePayload stale = FileTransferHandler.buildPayload(name, data, now - TimeUnit.MINUTES.toMillis(10));
+                        FileTransferHandler.sendFrame(FileTransferHandler.serializeObject(stale), HOST, port);
+                        break;
+                    }
+                    case "flipped-signature": {
+                        SecureFilePayload forged = FileTransferHandler.buildPayload(name, data, now);
+                        byte[] signature = forged.getSignature().clone();
+                        signature[i % signature.length] ^= (byte) (1 << (i % 8));
+                        forged.setSignature(signature);
+                        FileTransferHandler.sendFrame(FileTransferHandler.serializeObject(forged), HOST, port);
+                        break;
+                    }
+                    default:
+                        sendOversizedPrefix(port);
+                        break;
+                }
+
+                Outcome outcome = nextOutcome();
+                costs.add(outcome.serviceNanos);
+                allocated += Math.max(0, outcome.allocatedBytes);
+                if (outcome.file != null) {
+                    accepted++;
+                    outcome.file.delete();
+                }
+            }
+
+            allRejected &= accepted == 0;
+            System.out.printf("%-18s rejected %d/%d%s, cost ms: %s, allocated %.1f KB each%n",
+                    attack, count - accepted, count, accepted > 0 ? " (ACCEPTED " + accepted + "!)" : "",
+                    percentiles(costs), allocated / 1024.0 / count);
+        }
+        System.out.println(allRejected ? "All adversarial payloads were rejected." : "FAIL: some adversarial payloads were accepted.");
+    }
+
+    private static void sendOversizedPrefix(int port) throws IOException {
+        try (Socket socket = new Socket(HOST, port);
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(new byte[1024]);
+        }
+    }
+
+    private static Outcome nextOutcome() throws InterruptedException, TimeoutException {
+        Outcome outcome = outcomes.poll(30, TimeUnit.SECONDS);
+        if (outcome == null) throw new TimeoutException("Receiver did not answer");
+        return outcome;
+    }
+
+    // =================== Receiver ===================
+
+    private static ExecutorService startReceivers(ServerSocket serverSocket, int receivers, String saveDir) {
+        ExecutorService pool = Executors.newFixedThreadPool(receivers);
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    pool.submit(() -> receive(socket, saveDir));
+                } catch (IOException | RejectedExecutionException e) {
+                    return;
+                }
+            }
+        }, "loadgen-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return pool;
+    }
+
+    private static void receive(Socket socket, String saveDir) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        File file = FileTransferHandler.receiveFile(socket, saveDir);
+        long end = System.nanoTime();
+        long allocatedAfter = allocatedBytes();
+        long allocated = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        outcomes.add(new Outcome(file, end - start, allocated, end));
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return -1;
+    }
+
+    // =================== Helpers ===================
+
+    private static SizeDistribution parseSizes(String spec) {
+        String[] parts = spec.split(":", 2);
+        if (parts.length != 2) throw new IllegalArgumentException("Bad size spec: " + spec);
+        switch (parts[0]) {
+            case "fixed": {
+                int size = parseBytes(parts[1]);
+                return random -> size;
+            }
+            case "uniform": {
+                String[] range = parts[1].split("-");
+                int min = parseBytes(range[0]);
+                int max = parseBytes(range[1]);
+                return random -> min + random.nextInt(max - min + 1);
+            }
+            case "lognormal": {
+                // Median as given, sigma 1: mostly small files with a long tail of large ones
+                double median = parseBytes(parts[1]);
+                return random -> (int) Math.max(1, Math.min(Integer.MAX_VALUE, median * Math.exp(random.nextGaussian())));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown size distribution: " + parts[0]);
+        }
+    }
+
+    private static int parseBytes(String value) {
+        String v = value.trim().toLowerCase();
+        int multiplier = 1;
+        if (v.endsWith("k")) multiplier = 1024;
+        if (v.endsWith("m")) multiplier = 1024 * 1024;
+        if (multiplier > 1) v = v.substring(0, v.length() - 1);
+        return Integer.parseInt(v) * multiplier;
+    }
+
+    private static String percentiles(List<Long> nanos) {
+        if (nanos.isEmpty()) return "n/a";
+        long[] sorted = nanos.stream().mapToLong(Long::longValue).sorted().toArray();
+        return String.format("p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f",
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99),
+                percentile(sorted, 99.9), sorted[sorted.length - 1] / (double) NANOS_PER_MS);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / (double) NANOS_PER_MS;
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        file.delete();
+    }
+
+    // Collection counts and times summed over all collectors
+    private static class GcSnapshot {
+        final long collections;
+        final long timeMs;
+
+        GcSnapshot(long collections, long timeMs) {
+            this.collections = collections;
+            this.timeMs = timeMs;
+        }
+
+        static GcSnapshot take() {
+            long collections = 0;
+            long timeMs = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                collections += Math.max(0, gc.getCollectionCount());
+                timeMs += Math.max(0, gc.getCollectionTime());
+            }
+            return new GcSnapshot(collections, timeMs);
+        }
+
+        GcSnapshot minus(GcSnapshot other) {
+            return new GcSnapshot(collections - other.collections, timeMs - other.timeMs);
+        }
+
+        @Override
+        public String toString() {
+            Runtime runtime = Runtime.getRuntime();
+            long heapUsedMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+            return collections + " collections, " + timeMs + " ms total, heap used " + heapUsedMb + " MB";
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Envelope for sending one file to many recipients: the file is AES-encrypted and signed once,
+ * and only the AES key is wrapped separately for each recipient's RSA public key.
+ */
+public class MultiRecipientPayload implements Serializable, TransferEnvelope {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The AES key wrapped for one recipient, identified by the SHA-256 of its public key.
+     */
+    public static class RecipientKeyBlock implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] keyId;
+        private final byte[] encryptedAESKey;   // RSA-encrypted AES key
+
+        public RecipientKeyBlock(byte[] keyId, byte[] encryptedAESKey) {
+            this.keyId = keyId;
+            this.encryptedAESKey = encryptedAESKey;
+        }
+
+        public byte[] getKeyId() {
+            return keyId;
+        }
+
+        public byte[] getEncryptedAESKey() {
+            return encryptedAESKey;
+        }
+    }
+
+    private String fileName;
+    private byte[] encryptedFile;                // AES-encrypted file content
+    private List<RecipientKeyBlock> recipients;
+    private long timestamp;
+    private String nonce;
+    private byte[] signature;                    // Signature of every other field
+
+    public MultiRecipientPayload(String fileName, byte[] encryptedFile, List<RecipientKeyBlock> recipients,
+                                 long timestamp, String nonce, byte[] signature) {
+        this.fileName = fileName;
+        this.encryptedFile = encryptedFile;
+        this.recipients = new ArrayList<>(recipients);
+        this.timestamp = timestamp;
+        this.nonce = nonce;
+        this.signature = signature;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public byte[] getEncryptedFile() {
+        return encryptedFile;
+    }
+
+    public List<RecipientKeyBlock> getRecipients() {
+        return recipients;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getNonce() {
+        return nonce;
+    }
+
+    public byte[] getSignature() {
+        return signature;
+    }
+
+    public void setSignature(byte[] signature) {
+        this.signature = signature;
+    }
+
+    @Override
+    public MultiRecipientPayload withoutSignature() {
+        return new MultiRecipientPayload(fileName, encryptedFile, recipients, timestamp, nonce, null);
+    }
+
+    @Override
+    public byte[] getEncryptedAESKeyFor(byte[] recipientKeyId) {
+        for (RecipientKeyBlock block : recipients) {
+            if (MessageDigest.isEqual(block.getKeyId(), recipientKeyId)) {
+                return block.getEncryptedAESKey();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "MultiRecipientPayload{" +
+                "fileName='" + fileName + '\'' +
+                ", encryptedFile.length=" + (encryptedFile != null ? encryptedFile.length : 0) +
+                ", recipients=" + recipients.size() +
+                ", timestamp=" + timestamp +
+                ", nonce='" + nonce + '\'' +
+                ", signature=" + Arrays.toString(signature) +
+                '}';
+    }
+}
@@ -0,0 +1,324 @@
+import utils.AuditJournal;
+import utils.TransferStats;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staged receive path: network -> verify -> decrypt -> disk.
+ *
+ * Each stage has its own worker threads and a bounded queue in front of it. A worker hands a
+ * transfer to the next stage with a blocking put, so a slow stage stalls the one before it,
+ * and a full network queue stalls {@link #submit}, which stops the accept loop from reading
+ * more sockets. Backpressure therefore ends up in the socket backlog instead of the heap.
+ *
+ * Queues count transfers, not bytes, so the bytes held by transfers are bounded as well: after
+ * reading the length prefix a network worker reserves twice the payload size (the payload and
+ * its decrypted copy) from -Dreceive.maxInFlightBytes (default half the maximum heap) and waits
+ * while the budget is used up. The reservation is returned once the disk stage has written the
+ * file out, or when the transfer is rejected.
+ *
+ * Senders cannot hold the network threads: a socket that sends nothing for
+ * -Dreceive.readTimeoutMs (default 30 s), or has not delivered its whole payload within
+ * -Dreceive.readDeadlineMs (default 5 min), is dropped. The number of network threads is set
+ * with -Dreceive.networkThreads (default 4).
+ *
+ * The disk stage only writes the temp file; the transfer completes when the group commit in
+ * {@link utils.DurableFileWriter} has synced it, so disk workers never wait on a commit. The
+ * cache insert, audit record and listener then run on a small completion pool, so they never
+ * hold up the committer thread.
+ */
+public class ReceivePipeline {
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 32;
+    static final int READ_TIMEOUT_MS = Integer.getInteger("receive.readTimeoutMs", 30_000);
+    private static final long READ_DEADLINE_MS = Long.getLong("receive.readDeadlineMs", 300_000);
+    private static final long MAX_IN_FLIGHT_BYTES =
+            Long.getLong("receive.maxInFlightBytes", Runtime.getRuntime().maxMemory() / 2);
+    private static final int BUDGET_UNIT = 1024; // Semaphore permits are ints, so count in KB
+
+    public interface Listener {
+        void onFileReceived(File file);
+    }
+
+    // State carried by one incoming transfer as it moves between stages
+    private static class Transfer {
+        final Socket socket;
+        final String saveDir;
+        final Listener listener;
+        TransferEnvelope payload;
+        byte[] decryptedFile;
+        final long[] stageNanos = new long[4]; // time spent in each stage, for the audit journal
+        int reservedUnits; // share of the in-flight byte budget, returned by release()
+
+        Transfer(Socket socket, String saveDir, Listener listener) {
+            this.socket = socket;
+            this.saveDir = saveDir;
+            this.listener = listener;
+        }
+    }
+
+    private interface StageTask {
+        // Returns false when the transfer was rejected and must not reach the next stage
+        boolean process(Transfer transfer) throws Exception;
+    }
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final int budgetUnits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, MAX_IN_FLIGHT_BYTES / BUDGET_UNIT));
+    private final Semaphore budget = new Semaphore(budgetUnits, true);
+
+    private final Stage network;
+    private final Stage verify;
+    private final Stage decrypt;
+    private final Stage disk;
+    private final ExecutorService completions;
+
+    public ReceivePipeline(int networkThreads, int verifyThreads, int decryptThreads, int diskThreads,
+                           int queueCapacity) {
+        completions = Executors.newFixedThreadPool(diskThreads, task -> {
+            Thread thread = new Thread(task, "receive-complete");
+            thread.setDaemon(true);
+            return thread;
+        });
+        disk = new Stage("disk", 3, diskThreads, queueCapacity, null, t -> {
+            long start = System.nanoTime();
+            FileTransferHandler.savePayloadAsync(t.payload, t.decryptedFile, t.saveDir, completions)
+                    .whenCompleteAsync((file, error) -> {
+                // Runs on a completion thread, also for failed writes; the worker may still be
+                // recording its own time
+                long[] stageNanos = t.stageNanos.clone();
+                stageNanos[3] = System.nanoTime() - start;
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                    rejected.incrementAndGet();
+                    FileTransferHandler.auditReceive(cause instanceof Exception
+                            ? FileTransferHandler.outcomeOf((Exception) cause) : AuditJournal.ERROR,
+                            t.payload, stageNanos);
+                    return;
+                }
+                completed.incrementAndGet();
+                FileTransferHandler.auditReceive(AuditJournal.OK, t.payload, stageNanos);
+                if (t.listener != null) t.listener.onFileReceived(file);
+            }, completions);
+            // The data is in a temp file now; only the commit is outstanding
+            t.decryptedFile = null;
+            release(t);
+            return true;
+        });
+        decrypt = new Stage("decrypt", 2, decryptThreads, queueCapacity, disk, t -> {
+            t.decryptedFile = FileTransferHandler.decryptPayload(t.payload);
+            return true;
+        });
+        verify = new Stage("verify", 1, verifyThreads, queueCapacity, decrypt, t -> {
+            // Payloads read before the keys are ready wait here
+            FileTransferHandler.awaitKeys();
+            FileTransferHandler.verifyPayload(t.payload);
+            return true;
+        });
+        network = new Stage("network", 0, networkThreads, queueCapacity, verify, t -> {
+            DeadlineInputStream deadlineIn = new DeadlineInputStream(t.socket);
+            try (DataInputStream in = new DataInputStream(deadlineIn)) {
+                int length = FileTransferHandler.readPayloadLength(in);
+                reserve(t, length);
+                // Waiting for the budget is not the sender's fault
+                deadlineIn.restartDeadline();
+                t.payload = FileTransferHandler.readPayload(in, length);
+            }
+            return true;
+        });
+
+        TransferStats.register("receive.inFlightBytes",
+                () -> (long) (budgetUnits - budget.availablePermits()) * BUDGET_UNIT);
+        TransferStats.register("receive.completed", completed::get);
+        TransferStats.register("receive.rejected", rejected::get);
+    }
+
+    /**
+     * Sizes the stages from the number of available cores: the CPU-bound stages get one
+     * thread per core, network and disk a few threads to overlap blocking I/O.
+     */
+    public static ReceivePipeline createDefault() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int networkThreads = Math.max(1, Integer.getInteger("receive.networkThreads", 4));
+        return new ReceivePipeline(networkThreads, cores, cores, 2, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Queues an accepted socket for receiving. Blocks while the network stage is full.
+     */
+    public void submit(Socket socket, String saveDir, Listener listener) throws InterruptedException {
+        network.queue.put(new Transfer(socket, saveDir, listener));
+    }
+
+    public String getStats() {
+        return network + " " + verify + " " + decrypt + " " + disk
+                + " inFlight=" + (budgetUnits - budget.availablePermits()) / 1024 + "MB"
+                + " completed=" + completed.get() + " rejected=" + rejected.get();
+    }
+
+    // Blocks until the payload and its decrypted copy fit in the in-flight budget. A payload
+    // larger than the whole budget waits for everything else and then runs alone.
+    private void reserve(Transfer transfer, int payloadBytes) throws InterruptedException {
+        long units = (2L * payloadBytes + BUDGET_UNIT - 1) / BUDGET_UNIT;
+        int reserve = (int) Math.min(units, budgetUnits);
+        budget.acquire(reserve);
+        transfer.reservedUnits = reserve;
+    }
+
+    private void release(Transfer transfer) {
+        int units = transfer.reservedUnits;
+        transfer.reservedUnits = 0;
+        if (units > 0) budget.release(units);
+    }
+
+    public void shutdown() {
+        network.shutdown();
+        verify.shutdown();
+        decrypt.shutdown();
+        disk.shutdown();
+        completions.shutdown();
+        TransferStats.unregister("receive.");
+    }
+
+    private class Stage {
+        private final String name;
+        private final int index;
+        private final BlockingQueue<Transfer> queue;
+        private final Stage next;
+        private final StageTask task;
+        private final AtomicInteger busy = new AtomicInteger();
+        private final List<Thread> workers = new ArrayList<>();
+
+        Stage(String name, int index, int threads, int capacity, Stage next, StageTask task) {
+            this.name = name;
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.next = next;
+            this.task = task;
+
+            for (int i = 0; i < threads; i++) {
+                Thread worker = new Thread(this::runWorker, "receive-" + name + "-" + i);
+                worker.setDaemon(true);
+                worker.start();
+                workers.add(worker);
+            }
+
+            TransferStats.register("receive." + name + ".queued", queue::size);
+            TransferStats.register("receive." + name + ".busy", busy::get);
+        }
+
+        private void runWorker() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Transfer transfer;
+                try {
+                    transfer = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                boolean passed;
+                byte outcome = AuditJournal.ERROR;
+                busy.incrementAndGet();
+                long start = System.nanoTime();
+                try {
+                    passed = task.process(transfer);
+                } catch (Exception e) {
+                    outcome = FileTransferHandler.outcomeOf(e);
+                    passed = false;
+                } finally {
+                    transfer.stageNanos[index] = System.nanoTime() - start;
+                    busy.decrementAndGet();
+                }
+
+                if (!passed) {
+                    release(transfer);
+                    rejected.incrementAndGet();
+                    FileTransferHandler.auditReceive(outcome, transfer.payload, transfer.stageNanos);
+                    closeQuietly(transfer.socket);
+                    continue;
+                }
+
+                // The last stage finishes transfers itself, when their commit completes
+                if (next != null) {
+                    try {
+                        next.queue.put(transfer);
+                    } catch (InterruptedException e) {
+                        release(transfer);
+                        closeQuietly(transfer.socket);
+                        return;
+                    }
+                }
+            }
+        }
+
+        void shutdown() {
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + "[queued=" + queue.size() + ", busy=" + busy.get() + "/" + workers.size() + "]";
+        }
+    }
+
+    // Shrinks the socket timeout as the deadline approaches, so a sender trickling bytes still
+    // gives up its thread once the whole transfer has taken too long
+    private static class DeadlineInputStream extends FilterInputStream {
+        private final Socket socket;
+        private long deadline;
+
+        DeadlineInputStream(Socket socket) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+            restartDeadline();
+        }
+
+        void restartDeadline() {
+            deadline = System.currentTimeMillis() + READ_DEADLINE_MS;
+        }
+
+        private void updateTimeout() throws IOException {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SocketTimeoutException("Transfer not received within " + READ_DEADLINE_MS + " ms");
+            }
+            socket.setSoTimeout((int) Math.min(READ_TIMEOUT_MS, remaining));
+        }
+
+        @Override
+        public int read() throws IOException {
+            updateTimeout();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            updateTimeout();
+            return super.read(b, off, len);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
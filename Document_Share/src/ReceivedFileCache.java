@@ -0,0 +1,187 @@
+import utils.TransferStats;
+
+import java.io.File;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Byte-budgeted LRU cache of recently received files, so a file can be re-sent or recognised
+ * as a duplicate without reading it back from disk or encrypting it again.
+ *
+ * Entries are looked up by saved path (re-send) or by plaintext hash (duplicate detection).
+ * When the total size exceeds the budget, least recently used entries are evicted. With
+ * off-heap storage the ciphertext lives in direct buffers and does not add to heap or GC load;
+ * evicted buffers are freed at once, so direct memory stays within the budget.
+ */
+public class ReceivedFileCache {
+
+    private final Map<String, CachedFile> byPath = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CachedFile> byHash = new HashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final boolean offHeap;
+    private long byteBudget;
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long duplicates;
+
+    public ReceivedFileCache(long byteBudget, boolean offHeap) {
+        this.byteBudget = byteBudget;
+        this.offHeap = offHeap;
+
+        TransferStats.register("cache.hits", this::getHits);
+        TransferStats.register("cache.misses", this::getMisses);
+        TransferStats.register("cache.evictions", this::getEvictions);
+        TransferStats.register("cache.duplicates", this::getDuplicates);
+        TransferStats.register("cache.bytes", this::getBytes);
+        TransferStats.register("cache.entries", this::getEntries);
+        TransferStats.register("cache.budget", this::getByteBudget);
+    }
+
+    /**
+     * Adds a received file. Files larger than the whole budget are not cached.
+     */
+    public synchronized CachedFile put(File file, String name, byte[] encryptedFile, byte[] encryptedAESKey,
+                                       byte[] plaintextHash) {
+        // Checked before the entry exists, so an oversized file never gets an off-heap copy
+        if (CachedFile.sizeOf(encryptedFile.length, encryptedAESKey, plaintextHash) > byteBudget) return null;
+
+        CachedFile entry;
+        try {
+            entry = new CachedFile(nextId.incrementAndGet(), name, file.getAbsolutePath(),
+                    encryptedFile, offHeap, encryptedAESKey, plaintextHash);
+        } catch (OutOfMemoryError e) {
+            // Direct memory exhausted (-XX:MaxDirectMemorySize); caching is only an optimization
+            return null;
+        }
+
+        remove(byPath.get(entry.getPath()));
+        byPath.put(entry.getPath(), entry);
+        byHash.put(hashKey(plaintextHash), entry);
+        bytes += entry.getSize();
+        evictToBudget();
+        return entry;
+    }
+
+    /**
+     * Returns the cached entry for a saved file, or null. Entries whose saved file was changed
+     * since it was cached are dropped, so an edited file is never re-sent with stale content.
+     */
+    public synchronized CachedFile get(File file) {
+        CachedFile entry = byPath.get(file.getAbsolutePath());
+        if (entry != null && !entry.isSavedCopyUnchanged()) {
+            remove(entry);
+            entry = null;
+        }
+        if (entry != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns a cached file with the same plaintext and name, saved in dir and unchanged since,
+     * or null. Size and mtime are only a cheap check: the caller must compare the saved contents
+     * before skipping a write, then call {@link #recordDuplicate}.
+     */
+    public synchronized CachedFile findDuplicate(byte[] plaintextHash, String name, File dir) {
+        CachedFile entry = byHash.get(hashKey(plaintextHash));
+        if (entry == null) return null;
+        if (!entry.isSavedCopyUnchanged()) {
+            remove(entry);
+            return null;
+        }
+        if (!entry.getName().equals(name) || !new File(entry.getPath()).getParentFile().equals(dir)) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Counts a write that was skipped because entry already holds the same file.
+     */
+    public synchronized void recordDuplicate(CachedFile entry) {
+        byPath.get(entry.getPath()); // Refresh its LRU position
+        duplicates++;
+    }
+
+    /**
+     * Drops an entry whose saved copy no longer matches it.
+     */
+    public synchronized void invalidate(CachedFile entry) {
+        remove(entry);
+    }
+
+    /**
+     * Drops the entry for a saved file, if there is one.
+     */
+    public synchronized void remove(File file) {
+        remove(byPath.get(file.getAbsolutePath()));
+    }
+
+    public synchronized void setByteBudget(long byteBudget) {
+        this.byteBudget = byteBudget;
+        evictToBudget();
+    }
+
+    private void evictToBudget() {
+        Iterator<CachedFile> eldest = byPath.values().iterator();
+        while (bytes > byteBudget && eldest.hasNext()) {
+            CachedFile entry = eldest.next();
+            eldest.remove();
+            byHash.remove(hashKey(entry.getPlaintextHash()), entry);
+            bytes -= entry.getSize();
+            entry.release();
+            evictions++;
+        }
+    }
+
+    private void remove(CachedFile entry) {
+        if (entry == null) return;
+        if (byPath.remove(entry.getPath(), entry)) {
+            bytes -= entry.getSize();
+        }
+        byHash.remove(hashKey(entry.getPlaintextHash()), entry);
+        entry.release();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getEntries() {
+        return byPath.size();
+    }
+
+    public synchronized long getByteBudget() {
+        return byteBudget;
+    }
+
+    private static String hashKey(byte[] hash) {
+        return Base64.getEncoder().encodeToString(hash);
+    }
+}
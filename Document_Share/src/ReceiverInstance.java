@@ -0,0 +1,130 @@
+import utils.AuditJournal;
+import utils.KeyLoader;
+import utils.SharedNonceTable;
+import utils.TransferStats;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.file.Paths;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Headless receiver for Bob that can run as several processes on the same host.
+ *
+ * All instances bind the same port with SO_REUSEPORT, so the kernel spreads incoming
+ * connections across them, and share one memory-mapped nonce table, so a payload accepted by
+ * one instance is rejected as a replay by every other one. Keys must already exist; start the
+ * GUI Server once to generate them.
+ *
+ * Usage: java ReceiverInstance [--port 1234] [--dir ServerFiles/] [--nonce-table nonces.tbl]
+ *                              [--nonce-capacity 1048576] [--stats-interval 10]
+ *                              [--audit-dir audit/bob-PID]
+ *
+ * Every instance needs its own audit directory, so the default includes the process id.
+ */
+public class ReceiverInstance {
+
+    private static final String BOB_PRIVATE_KEY = "bob_private.key";
+    private static final String BOB_PUBLIC_KEY = "bob_public.key";
+    private static final String ALICE_PUBLIC_KEY = "alice_public.key";
+
+    public static void main(String[] args) {
+        int port = 1234;
+        String saveDir = "ServerFiles/";
+        String nonceTable = "nonces.tbl";
+        int nonceCapacity = 1 << 20;
+        int statsInterval = 10;
+        String auditDir = null;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--dir": saveDir = args[i + 1]; break;
+                case "--nonce-table": nonceTable = args[i + 1]; break;
+                case "--nonce-capacity": nonceCapacity = Integer.parseInt(args[i + 1]); break;
+                case "--stats-interval": statsInterval = Integer.parseInt(args[i + 1]); break;
+                case "--audit-dir": auditDir = args[i + 1]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        long pid = ProcessHandle.current().pid();
+        new File(saveDir).mkdirs();
+
+        try {
+            PrivateKey bobPrivateKey = KeyLoader.loadPrivateKey(BOB_PRIVATE_KEY);
+            PublicKey alicePublicKey = KeyLoader.loadPublicKey(ALICE_PUBLIC_KEY);
+            FileTransferHandler.setPrivateKey(bobPrivateKey);
+            FileTransferHandler.setPublicKey(alicePublicKey);
+            if (new File(BOB_PUBLIC_KEY).exists()) {
+                FileTransferHandler.setOwnPublicKey(KeyLoader.loadPublicKey(BOB_PUBLIC_KEY));
+            }
+        } catch (Exception e) {
+            System.err.println("Key loading error: " + e.getMessage());
+            return;
+        }
+
+        try {
+            FileTransferHandler.setSharedNonceTable(SharedNonceTable.open(Paths.get(nonceTable), nonceCapacity));
+            System.out.println("[" + pid + "] Using shared nonce table " + nonceTable);
+        } catch (IOException e) {
+            System.err.println("Cannot open nonce table " + nonceTable + ": " + e.getMessage());
+            return;
+        }
+
+        if (auditDir == null) auditDir = "audit/bob-" + pid;
+        try {
+            AuditJournal.start(new File(auditDir));
+            System.out.println("[" + pid + "] Audit journal in " + auditDir);
+        } catch (IOException e) {
+            System.err.println("Audit journal disabled: " + e.getMessage());
+        }
+
+        ReceivePipeline receivePipeline = ReceivePipeline.createDefault();
+        startStatsLogger(pid, statsInterval);
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            if (!serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                System.err.println("SO_REUSEPORT is not supported on this platform; run a single instance.");
+                return;
+            }
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            serverSocket.bind(new InetSocketAddress(port));
+            System.out.println("[" + pid + "] Receiver instance listening on port " + port);
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                // Completed and rejected transfers are recorded in the audit journal
+                receivePipeline.submit(socket, saveDir, null);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void startStatsLogger(long pid, int intervalSeconds) {
+        if (intervalSeconds <= 0) return;
+
+        Thread logger = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalSeconds * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.out.println("[" + pid + "] " + TransferStats.format());
+            }
+        }, "stats-logger");
+        logger.setDaemon(true);
+        logger.start();
+    }
+}
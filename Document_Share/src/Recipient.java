@@ -0,0 +1,33 @@
+import java.security.PublicKey;
+
+/**
+ * One destination of a fan-out transfer: where to connect and whose key to wrap the AES key for.
+ */
+public class Recipient {
+    private final String host;
+    private final int port;
+    private final PublicKey publicKey;
+
+    public Recipient(String host, int port, PublicKey publicKey) {
+        this.host = host;
+        this.port = port;
+        this.publicKey = publicKey;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public PublicKey getPublicKey() {
+        return publicKey;
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
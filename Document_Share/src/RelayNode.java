@@ -0,0 +1,103 @@
+import utils.AuditJournal;
+import utils.KeyLoader;
+import utils.RSAUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Store-and-forward relay between two peers.
+ *
+ * Each incoming payload is verified with the upstream sender's public key, then forwarded to
+ * the next hop with the AES key re-wrapped for the next hop and signed by the relay. The file
+ * body is never decrypted or re-encrypted, so forwarding costs the same for any file size
+ * apart from copying the bytes. The next hop must use the relay's public key to verify.
+ *
+ * Usage: java RelayNode [--port 4321] [--next-host localhost] [--next-port 1234]
+ *                       [--upstream-key alice_public.key] [--next-key bob_public.key]
+ *                       [--audit-dir audit/relay]
+ */
+public class RelayNode {
+
+    private static final String RELAY_PRIVATE_KEY = "relay_private.key";
+    private static final String RELAY_PUBLIC_KEY = "relay_public.key";
+
+    public static void main(String[] args) {
+        int port = 4321;
+        String nextHost = "localhost";
+        int nextPort = 1234;
+        String upstreamKeyFile = "alice_public.key";
+        String nextKeyFile = "bob_public.key";
+        String auditDir = "audit/relay";
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(args[i + 1]); break;
+                case "--next-host": nextHost = args[i + 1]; break;
+                case "--next-port": nextPort = Integer.parseInt(args[i + 1]); break;
+                case "--upstream-key": upstreamKeyFile = args[i + 1]; break;
+                case "--next-key": nextKeyFile = args[i + 1]; break;
+                case "--audit-dir": auditDir = args[i + 1]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        PublicKey nextHopKey;
+        try {
+            // Load or generate the relay's key pair
+            if (!KeyLoader.keysExist(RELAY_PUBLIC_KEY, RELAY_PRIVATE_KEY)) {
+                KeyPair keyPair = RSAUtils.generateKeyPair();
+                KeyLoader.saveKeys(keyPair, RELAY_PUBLIC_KEY, RELAY_PRIVATE_KEY);
+                System.out.println("Generated new RSA key pair for the relay.");
+            }
+
+            // Relay's private key unwraps incoming AES keys and signs forwarded payloads
+            FileTransferHandler.setPrivateKey(KeyLoader.loadPrivateKey(RELAY_PRIVATE_KEY));
+            FileTransferHandler.setOwnPublicKey(KeyLoader.loadPublicKey(RELAY_PUBLIC_KEY));
+
+            if (!new File(upstreamKeyFile).exists() || !new File(nextKeyFile).exists()) {
+                System.err.println("Upstream or next hop public key not found. Cannot relay.");
+                return;
+            }
+            FileTransferHandler.setPublicKey(KeyLoader.loadPublicKey(upstreamKeyFile));
+            nextHopKey = KeyLoader.loadPublicKey(nextKeyFile);
+
+        } catch (Exception e) {
+            System.err.println("Key loading error: " + e.getMessage());
+            return;
+        }
+
+        try {
+            AuditJournal.start(new File(auditDir));
+        } catch (IOException e) {
+            System.err.println("Audit journal disabled: " + e.getMessage());
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
+        String host = nextHost;
+        int hostPort = nextPort;
+
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Relay listening on port " + port + ", forwarding to " + nextHost + ":" + nextPort);
+            while (true) {
+                Socket socket = serverSocket.accept();
+                // Idle senders must not tie up the workers
+                socket.setSoTimeout(ReceivePipeline.READ_TIMEOUT_MS);
+                // Outcomes are recorded in the audit journal
+                workers.submit(() -> FileTransferHandler.relayFile(socket, host, hostPort, nextHopKey));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdown();
+        }
+    }
+}
@@ -1,7 +1,7 @@
 import java.io.Serializable;
 import java.util.Arrays;
 
-public class SecureFilePayload implements Serializable {
+public class SecureFilePayload implements Serializable, TransferEnvelope {
     private static final long serialVersionUID = 1L;
 
     private String fileName;
@@ -69,6 +69,16 @@ public class SecureFilePayload implements Serializable {
         this.signature = signature;
     }
 
+    @Override
+    public SecureFilePayload withoutSignature() {
+        return new SecureFilePayload(fileName, encryptedFile, encryptedAESKey, timestamp, nonce, null);
+    }
+
+    @Override
+    public byte[] getEncryptedAESKeyFor(byte[] recipientKeyId) {
+        return encryptedAESKey; // Single recipient
+    }
+
     @Override
     public String toString() {
         return "SecureFilePayload{" +
@@ -1,5 +1,4 @@
-import utils.KeyLoader;
-import utils.RSAUtils;
+import utils.TransferStats;
 
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
@@ -8,9 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.security.KeyPair;
-import java.security.PrivateKey;
-import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
 
 public class Server {
 
@@ -23,39 +20,34 @@ public class Server {
     private static final String ALICE_PUBLIC_KEY = "alice_public.key";
 
     public static void main(String[] args) {
-        new File("ServerFiles/").mkdirs();
-
-        try {
-            // Load or generate Bob's key pair
-            if (!KeyLoader.keysExist(BOB_PUBLIC_KEY, BOB_PRIVATE_KEY)) {
-                KeyPair keyPair = RSAUtils.generateKeyPair();
-                KeyLoader.saveKeys(keyPair, BOB_PUBLIC_KEY, BOB_PRIVATE_KEY);
-                System.out.println("Generated new RSA key pair for Bob.");
+        // Upload limits, see TransferLimits: --rate, --peer-rate, --peer host:port=N, --small-file-bytes
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!TransferLimits.applyOption(args[i], args[i + 1])) {
+                System.err.println("Unknown option: " + args[i]);
+                return;
             }
+        }
 
-            // Set Bob's private key (for decrypting AES key)
-            PrivateKey bobPrivateKey = KeyLoader.loadPrivateKey(BOB_PRIVATE_KEY);
-            FileTransferHandler.setPrivateKey(bobPrivateKey);
-            System.out.println("Loaded Bob's private key.");
+        new File("ServerFiles/").mkdirs();
 
-            // Load Alice's public key (for verifying signature)
-            if (new File(ALICE_PUBLIC_KEY).exists()) {
-                PublicKey alicePublicKey = KeyLoader.loadPublicKey(ALICE_PUBLIC_KEY);
-                FileTransferHandler.setPublicKey(alicePublicKey);
-                System.out.println("Loaded Alice's public key.");
-            } else {
-                System.err.println("Alice's public key not found. Cannot verify signature.");
-                return;
-            }
+        // Keys are generated or loaded in the background; sends and receives wait for them
+        CompletableFuture<Void> keysReady = Startup.provisionKeys(
+                "Bob", BOB_PUBLIC_KEY, BOB_PRIVATE_KEY, ALICE_PUBLIC_KEY, "audit/bob");
 
-        } catch (Exception e) {
-            System.err.println("Key loading error: " + e.getMessage());
+        // Listen before building the GUI; connections wait in the backlog until the accept loop runs
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(SERVER_PORT);
+        } catch (IOException e) {
+            System.err.println("Cannot listen on port " + SERVER_PORT + ": " + e.getMessage());
             return;
         }
 
+        ReceivePipeline receivePipeline = ReceivePipeline.createDefault();
+
         // GUI Setup
         JFrame jFrame = new JFrame("Bob");
-        jFrame.setSize(650, 550);  // Increased height for extra buttons
+        jFrame.setSize(650, 620);  // Increased height for extra buttons
         jFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         jFrame.setLayout(new BorderLayout(10, 10));
         jFrame.setLocationRelativeTo(null);
@@ -88,12 +80,16 @@ public class Server {
         jbSendFile.setBorder(BorderFactory.createLineBorder(new Color(46, 139, 87), 2));
         jbSendFile.setAlignmentX(Component.CENTER_ALIGNMENT);
 
-//        JButton jbSendBack = new JButton("Send Last Received File to Alice");
-//        jbSendBack.setFont(new Font("Arial", Font.BOLD, 20));
-//        jbSendBack.setBackground(new Color(100, 149, 237));
-//        jbSendBack.setForeground(Color.WHITE);
-//        jbSendBack.setBorder(BorderFactory.createLineBorder(new Color(65, 105, 225), 2));
-//        jbSendBack.setAlignmentX(Component.CENTER_ALIGNMENT);
+        JButton jbSendBack = new JButton("Send Last Received File to Alice");
+        jbSendBack.setFont(new Font("Arial", Font.BOLD, 20));
+        jbSendBack.setBackground(new Color(100, 149, 237));
+        jbSendBack.setForeground(Color.WHITE);
+        jbSendBack.setBorder(BorderFactory.createLineBorder(new Color(65, 105, 225), 2));
+        jbSendBack.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+        JButton jbLimits = new JButton("Upload Limits");
+        jbLimits.setFont(new Font("Arial", Font.PLAIN, 14));
+        jbLimits.setAlignmentX(Component.CENTER_ALIGNMENT);
 
         mainPanel.add(jlTitle);
         mainPanel.add(jlFileName);
@@ -102,14 +98,28 @@ public class Server {
         mainPanel.add(Box.createRigidArea(new Dimension(0, 10)));
         mainPanel.add(jbSendFile);
         mainPanel.add(Box.createRigidArea(new Dimension(0, 30)));
-//        mainPanel.add(jbSendBack);
+        mainPanel.add(jbSendBack);
+        mainPanel.add(Box.createRigidArea(new Dimension(0, 20)));
+        mainPanel.add(jbLimits);
 
         jFrame.add(mainPanel, BorderLayout.CENTER);
+
+        // Receive pipeline queue depths and upload usage, refreshed every second
+        JLabel jlStats = new JLabel(stats(receivePipeline));
+        jlStats.setFont(new Font("Arial", Font.PLAIN, 11));
+        jlStats.setBorder(new EmptyBorder(0, 10, 10, 10));
+        jFrame.add(jlStats, BorderLayout.SOUTH);
+        new Timer(1000, e -> jlStats.setText(stats(receivePipeline))).start();
+        // Sending needs the keys; the buttons stay disabled until they are ready
+        jbSendFile.setEnabled(false);
+        jbSendBack.setEnabled(false);
         jFrame.setVisible(true);
 
         File[] fileToSend = new File[1];
         File[] lastReceivedFile = new File[1];
 
+        jbLimits.addActionListener(e -> TransferLimits.showDialog(jFrame));
+
         jbChooseFile.addActionListener(e -> {
             JFileChooser jFileChooser = new JFileChooser();
             jFileChooser.setDialogTitle("Choose a file to send");
@@ -125,47 +135,78 @@ public class Server {
                 jlFileName.setText("Please choose a file");
                 jlFileName.setForeground(Color.RED);
             } else {
+                // Send off the event thread so the window stays responsive
+                File file = fileToSend[0];
+                jbSendFile.setEnabled(false);
+                new Thread(() -> {
+                    try {
+                        FileTransferHandler.sendFile(file, "localhost", CLIENT_RECEIVE_PORT);
+                        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "File sent to Alice securely!"));
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage()));
+                    } finally {
+                        SwingUtilities.invokeLater(() -> jbSendFile.setEnabled(true));
+                    }
+                }, "send-file").start();
+            }
+        });
+
+        jbSendBack.addActionListener(e -> {
+            if (lastReceivedFile[0] == null || !lastReceivedFile[0].exists()) {
+                JOptionPane.showMessageDialog(null, "No received file to send.");
+                return;
+            }
+            File file = lastReceivedFile[0];
+            jbSendBack.setEnabled(false);
+            new Thread(() -> {
                 try {
-                    FileTransferHandler.sendFile(fileToSend[0], "localhost", CLIENT_RECEIVE_PORT);
-                    JOptionPane.showMessageDialog(null, "File sent to Alice securely!");
+                    FileTransferHandler.resendFile(file, "localhost", CLIENT_RECEIVE_PORT);
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Sent last received file back to Alice securely!"));
                 } catch (IOException ex) {
                     ex.printStackTrace();
-                    JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage());
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage()));
+                } finally {
+                    SwingUtilities.invokeLater(() -> jbSendBack.setEnabled(true));
                 }
-            }
+            }, "send-file").start();
         });
 
-//        jbSendBack.addActionListener(e -> {
-//            if (lastReceivedFile[0] == null || !lastReceivedFile[0].exists()) {
-//                JOptionPane.showMessageDialog(null, "No received file to send.");
-//                return;
-//            }
-//            try {
-//                FileTransferHandler.sendFile(lastReceivedFile[0], "localhost", CLIENT_RECEIVE_PORT);
-//                JOptionPane.showMessageDialog(null, "Sent last received file back to Alice securely!");
-//            } catch (IOException ex) {
-//                ex.printStackTrace();
-//                JOptionPane.showMessageDialog(null, "Error sending file: " + ex.getMessage());
-//            }
-//        });
+        keysReady.whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                jlFileName.setText("Keys unavailable: " + error.getMessage());
+                jlFileName.setForeground(Color.RED);
+            } else {
+                jbSendFile.setEnabled(true);
+                jbSendBack.setEnabled(true);
+            }
+        }));
 
         // Start receiving thread
         new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(SERVER_PORT)) {
+            try (serverSocket) {
                 System.out.println("Server listening on port " + SERVER_PORT);
                 while (true) {
                     Socket socket = serverSocket.accept();
-                    File receivedFile = FileTransferHandler.receiveFile(socket, "ServerFiles/");
-                    if (receivedFile != null) {
-                        lastReceivedFile[0] = receivedFile;
-                        jlFileName.setText("Received file: " + receivedFile.getName());
-                        jlFileName.setForeground(new Color(34, 139, 34));
-                        System.out.println("File received by Bob: " + receivedFile.getName());
-                    }
+                    // Blocks while the pipeline is saturated, leaving new connections in the backlog
+                    receivePipeline.submit(socket, "ServerFiles/", receivedFile -> {
+                        // Called from a pipeline thread
+                        SwingUtilities.invokeLater(() -> {
+                            lastReceivedFile[0] = receivedFile;
+                            jlFileName.setText("Received file: " + receivedFile.getName());
+                            jlFileName.setForeground(new Color(34, 139, 34));
+                        });
+                    });
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }).start();
     }
+
+    private static String stats(ReceivePipeline receivePipeline) {
+        return "<html>" + receivePipeline.getStats() + "<br>" + TransferStats.format("scheduler.") + "</html>";
+    }
 }
@@ -0,0 +1,161 @@
+import utils.AuditJournal;
+import utils.KeyLoader;
+import utils.RSAUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Background startup for Client and Server.
+ *
+ * Key generation (first launch) or key loading (later launches) runs on a background thread
+ * so the caller can bind its port and build the GUI at the same time. Until the keys are
+ * installed, sends and pipeline receives wait on the gate set with
+ * {@link FileTransferHandler#setKeysReady}; connections accepted in the meantime simply wait.
+ *
+ * Optionally, before the gate opens, a few synthetic transfers are sent over loopback through
+ * the real send and receive code, signed and encrypted with our own key pair, so the first
+ * real file does not pay for JIT compilation of the crypto and serialization paths. The number
+ * of warm-up transfers is set with -Dstartup.warmUpTransfers (default 0, no warm-up).
+ */
+public class Startup {
+
+    private static final int WARM_UP_FILE_BYTES = 64 * 1024;
+    private static final int WARM_UP_TIMEOUT_MS = 10_000;
+
+    private static volatile int warmUpTransfers = Integer.getInteger("startup.warmUpTransfers", 0);
+
+    public static void setWarmUpTransfers(int transfers) {
+        warmUpTransfers = transfers;
+    }
+
+    /**
+     * Generates or loads keys in the background and returns at once. The audit journal, if
+     * auditDir is not null, is started after the warm-up so synthetic transfers are not recorded.
+     *
+     * @return a future completed once the keys are installed; it is also the key gate
+     */
+    public static CompletableFuture<Void> provisionKeys(String name, String publicKeyFile, String privateKeyFile,
+                                                       String peerPublicKeyFile, String auditDir) {
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+        FileTransferHandler.setKeysReady(ready);
+
+        Thread provisioner = new Thread(() -> {
+            try {
+                long start = System.nanoTime();
+
+                // Load or generate our key pair
+                KeyPair keyPair;
+                if (!KeyLoader.keysExist(publicKeyFile, privateKeyFile)) {
+                    keyPair = RSAUtils.generateKeyPair();
+                    KeyLoader.saveKeys(keyPair, publicKeyFile, privateKeyFile);
+                    System.out.println("Generated new RSA key pair for " + name + ".");
+                } else {
+                    keyPair = new KeyPair(KeyLoader.loadPublicKey(publicKeyFile), KeyLoader.loadPrivateKey(privateKeyFile));
+                    System.out.println("Loaded " + name + "'s key pair.");
+                }
+                if (!new File(peerPublicKeyFile).exists()) {
+                    throw new FileNotFoundException("Peer public key " + peerPublicKeyFile + " not found");
+                }
+                PublicKey peerKey = KeyLoader.loadPublicKey(peerPublicKeyFile);
+
+                FileTransferHandler.setPrivateKey(keyPair.getPrivate());
+                FileTransferHandler.setOwnPublicKey(keyPair.getPublic());
+
+                int transfers = warmUpTransfers;
+                if (transfers > 0) {
+                    long warmUpStart = System.nanoTime();
+                    try {
+                        warmUp(keyPair.getPublic(), transfers);
+                        System.out.printf("Warm-up: %d transfers in %d ms%n",
+                                transfers, (System.nanoTime() - warmUpStart) / 1_000_000);
+                    } catch (Exception e) {
+                        // Only costs speed; the real keys are still installed below
+                        System.err.println("Warm-up failed: " + e.getMessage());
+                    }
+                }
+
+                FileTransferHandler.setPublicKey(peerKey);
+                if (auditDir != null) {
+                    try {
+                        AuditJournal.start(new File(auditDir));
+                    } catch (IOException e) {
+                        System.err.println("Audit journal disabled: " + e.getMessage());
+                    }
+                }
+
+                System.out.println(name + "'s keys ready in " + (System.nanoTime() - start) / 1_000_000 + " ms.");
+                ready.complete(null);
+
+            } catch (Exception e) {
+                System.err.println("Key loading error: " + e.getMessage());
+                ready.completeExceptionally(e);
+            }
+        }, "startup-keys");
+        provisioner.setDaemon(true);
+        provisioner.start();
+        return ready;
+    }
+
+    // Sends transfers to ourselves over loopback: the peer key is temporarily our own public key
+    private static void warmUp(PublicKey ownPublicKey, int transfers) throws Exception {
+        FileTransferHandler.setPublicKey(ownPublicKey);
+
+        byte[] data = new byte[WARM_UP_FILE_BYTES];
+        new Random(1).nextBytes(data);
+        Path saveDir = Files.createTempDirectory("warmup");
+        Exception[] sendError = new Exception[1];
+
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(WARM_UP_TIMEOUT_MS);
+            String host = InetAddress.getLoopbackAddress().getHostAddress();
+            int port = serverSocket.getLocalPort();
+
+            Thread sender = new Thread(() -> {
+                try {
+                    for (int i = 0; i < transfers; i++) {
+                        SecureFilePayload payload = FileTransferHandler.buildPayload(
+                                "warmup-" + i + ".bin", data, System.currentTimeMillis());
+                        FileTransferHandler.sendFrame(FileTransferHandler.serializeObject(payload), host, port);
+                    }
+                } catch (Exception e) {
+                    sendError[0] = e;
+                }
+            }, "startup-warm-up");
+            sender.setDaemon(true);
+            sender.start();
+
+            for (int i = 0; i < transfers; i++) {
+                try (Socket socket = serverSocket.accept()) {
+                    File file = FileTransferHandler.receiveFile(socket, saveDir.toString());
+                    if (file == null) {
+                        throw new IOException("Warm-up transfer was rejected");
+                    }
+                    // Synthetic files must not be offered for re-sending
+                    FileTransferHandler.getReceivedFileCache().remove(file);
+                }
+            }
+            sender.join(WARM_UP_TIMEOUT_MS);
+            if (sendError[0] != null) throw sendError[0];
+
+        } finally {
+            File[] files = saveDir.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            Files.deleteIfExists(saveDir);
+        }
+    }
+}
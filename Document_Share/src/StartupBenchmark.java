@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a cold start the way Client and Server start up: keys are provisioned with
+ * {@link Startup}, the port is bound right away and files go through {@link ReceivePipeline}.
+ * The benchmark sends files to itself over loopback, with one key pair on both sides.
+ *
+ * It reports, measured from JVM start, when the first connection was accepted and when the
+ * keys were ready, then the latency of the first transfer compared to later ones. Run every
+ * configuration in a fresh JVM, for example with and without warm-up:
+ *
+ * Usage: java StartupBenchmark [--warm-up 0] [--fresh-keys] [--transfers 5] [--size-kb 64]
+ *                              [--key-dir startup-benchmark-keys]
+ * --fresh-keys deletes the keys first, to measure a first launch that generates them.
+ */
+public class StartupBenchmark {
+
+    private static final String PUBLIC_KEY = "benchmark_public.key";
+    private static final String PRIVATE_KEY = "benchmark_private.key";
+    private static final long NANOS_PER_MS = 1_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        long mainAt = System.currentTimeMillis();
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+        int warmUp = 0;
+        boolean freshKeys = false;
+        int transfers = 5;
+        int sizeKb = 64;
+        String keyDir = "startup-benchmark-keys";
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--warm-up": warmUp = Integer.parseInt(args[++i]); break;
+                case "--fresh-keys": freshKeys = true; break;
+                case "--transfers": transfers = Integer.parseInt(args[++i]); break;
+                case "--size-kb": sizeKb = Integer.parseInt(args[++i]); break;
+                case "--key-dir": keyDir = args[++i]; break;
+                default:
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+            }
+        }
+
+        new File(keyDir).mkdirs();
+        String publicKey = new File(keyDir, PUBLIC_KEY).getPath();
+        String privateKey = new File(keyDir, PRIVATE_KEY).getPath();
+        if (freshKeys) {
+            Files.deleteIfExists(Path.of(publicKey));
+            Files.deleteIfExists(Path.of(privateKey));
+        }
+
+        // Same order as Client and Server: keys in the background, then bind, then the accept loop
+        Startup.setWarmUpTransfers(warmUp);
+        CompletableFuture<Void> keysReady = Startup.provisionKeys(
+                "Benchmark", publicKey, privateKey, publicKey, null);
+        CompletableFuture<Long> keysReadyAt = keysReady.thenApply(ignored -> System.currentTimeMillis());
+
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        String host = InetAddress.getLoopbackAddress().getHostAddress();
+        int port = serverSocket.getLocalPort();
+        Path saveDir = Files.createTempDirectory("startup-benchmark");
+
+        ReceivePipeline receivePipeline = ReceivePipeline.createDefault();
+        BlockingQueue<Long> receivedAt = new LinkedBlockingQueue<>();
+        long[] firstAcceptAt = new long[1];
+        Thread acceptor = new Thread(() -> {
+            try {
+                // The first connection is an empty probe that only measures time to first accept
+                serverSocket.accept().close();
+                firstAcceptAt[0] = System.currentTimeMillis();
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    receivePipeline.submit(socket, saveDir.toString(), file -> receivedAt.add(System.nanoTime()));
+                }
+            } catch (IOException e) {
+                // Socket closed at the end of the run
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "benchmark-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        try {
+            new Socket(host, port).close();
+
+            File file = saveDir.resolve("benchmark.bin").toFile();
+            byte[] data = new byte[sizeKb * 1024];
+            new Random(7).nextBytes(data);
+
+            // Transfers start once the keys are ready, so the latencies exclude key provisioning
+            keysReadyAt.get();
+            long firstFileAt = 0;
+            long[] latencies = new long[transfers];
+            for (int i = 0; i < transfers; i++) {
+                // Different content every time, or the receiver skips the write as a duplicate
+                data[0] = (byte) i;
+                Files.write(file.toPath(), data);
+
+                long start = System.nanoTime();
+                FileTransferHandler.sendFile(file, host, port);
+                Long end = receivedAt.poll(30, TimeUnit.SECONDS);
+                if (end == null) {
+                    System.err.println("Transfer " + (i + 1) + " was not received.");
+                    return;
+                }
+                latencies[i] = end - start;
+                if (i == 0) firstFileAt = System.currentTimeMillis();
+            }
+
+            System.out.println();
+            System.out.println("=== Startup: " + (freshKeys ? "new keys" : "existing keys")
+                    + ", warm-up " + warmUp + " transfers, " + sizeKb + " KB files ===");
+            System.out.println("JVM start -> main:           " + (mainAt - jvmStart) + " ms");
+            System.out.println("JVM start -> first accept:   " + (firstAcceptAt[0] - jvmStart) + " ms");
+            System.out.println("JVM start -> keys ready:     " + (keysReadyAt.get() - jvmStart) + " ms");
+            System.out.println("JVM start -> first file:     " + (firstFileAt - jvmStart) + " ms");
+            System.out.printf("first transfer latency:      %.2f ms%n", latencies[0] / (double) NANOS_PER_MS);
+            if (transfers > 1) {
+                long[] later = Arrays.copyOfRange(latencies, 1, transfers);
+                Arrays.sort(later);
+                System.out.printf("later transfers:             p50=%.2f ms min=%.2f ms%n",
+                        later[later.length / 2] / (double) NANOS_PER_MS, later[0] / (double) NANOS_PER_MS);
+            }
+
+        } finally {
+            serverSocket.close();
+            receivePipeline.shutdown();
+            File[] files = saveDir.toFile().listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            Files.deleteIfExists(saveDir);
+        }
+    }
+}
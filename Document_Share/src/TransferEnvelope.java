@@ -0,0 +1,28 @@
+/**
+ * A signed, encrypted file as it travels over the wire. Implemented by the single-recipient
+ * {@link SecureFilePayload} and the multi-recipient {@link MultiRecipientPayload}, so the
+ * receive path can verify and decrypt either one.
+ */
+public interface TransferEnvelope {
+
+    String getFileName();
+
+    byte[] getEncryptedFile();
+
+    long getTimestamp();
+
+    String getNonce();
+
+    byte[] getSignature();
+
+    /**
+     * Returns a copy with the signature left out; its serialized form is what gets signed.
+     */
+    TransferEnvelope withoutSignature();
+
+    /**
+     * Returns the AES key wrapped for the recipient with the given key id, or null if the
+     * envelope has no key block for that recipient.
+     */
+    byte[] getEncryptedAESKeyFor(byte[] recipientKeyId);
+}
@@ -0,0 +1,74 @@
+import utils.TransferScheduler;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Command-line options and a dialog for the outgoing limits of {@link TransferScheduler}, shared
+ * by Client, Server and FanOutSender. Rates are in bytes per second on the command line and in
+ * KB/s in the dialog; 0 means unlimited.
+ *
+ * Options: --rate N (all uploads), --peer-rate N (each peer), --peer host:port=N (one peer),
+ *          --small-file-bytes N (transfers up to N bytes use the small-file lane)
+ */
+public class TransferLimits {
+
+    /**
+     * Applies one limit option. Returns false if name is not a limit option.
+     */
+    public static boolean applyOption(String name, String value) {
+        switch (name) {
+            case "--rate":
+                TransferScheduler.setGlobalRate(Long.parseLong(value));
+                return true;
+            case "--peer-rate":
+                TransferScheduler.setDefaultPeerRate(Long.parseLong(value));
+                return true;
+            case "--peer":
+                int equals = value.lastIndexOf('=');
+                if (equals <= 0) throw new IllegalArgumentException("Expected host:port=bytesPerSecond, got " + value);
+                TransferScheduler.setPeerRate(value.substring(0, equals), Long.parseLong(value.substring(equals + 1)));
+                return true;
+            case "--small-file-bytes":
+                TransferScheduler.setSmallFileThreshold(Long.parseLong(value));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Shows the current limits and applies the values entered. Call on the event thread.
+     */
+    public static void showDialog(Component parent) {
+        JTextField jtfRate = new JTextField(String.valueOf(TransferScheduler.getGlobalRate() / 1024));
+        JTextField jtfPeerRate = new JTextField(String.valueOf(TransferScheduler.getDefaultPeerRate() / 1024));
+        JTextField jtfSmallFile = new JTextField(String.valueOf(TransferScheduler.getSmallFileThreshold() / 1024));
+
+        JPanel panel = new JPanel(new GridLayout(0, 2, 10, 5));
+        panel.add(new JLabel("All uploads (KB/s, 0 = unlimited)"));
+        panel.add(jtfRate);
+        panel.add(new JLabel("Each peer (KB/s, 0 = unlimited)"));
+        panel.add(jtfPeerRate);
+        panel.add(new JLabel("Small file size (KB)"));
+        panel.add(jtfSmallFile);
+
+        if (JOptionPane.showConfirmDialog(parent, panel, "Upload Limits",
+                JOptionPane.OK_CANCEL_OPTION) != JOptionPane.OK_OPTION) {
+            return;
+        }
+        try {
+            // Parse everything before applying anything
+            long rate = Long.parseLong(jtfRate.getText().trim()) * 1024;
+            long peerRate = Long.parseLong(jtfPeerRate.getText().trim()) * 1024;
+            long smallFile = Long.parseLong(jtfSmallFile.getText().trim()) * 1024;
+            if (rate < 0 || peerRate < 0 || smallFile < 0) throw new NumberFormatException("negative value");
+
+            TransferScheduler.setGlobalRate(rate);
+            TransferScheduler.setDefaultPeerRate(peerRate);
+            TransferScheduler.setSmallFileThreshold(smallFile);
+        } catch (NumberFormatException e) {
+            JOptionPane.showMessageDialog(parent, "Invalid limit: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+import utils.AuditJournal;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Thrown when an incoming payload is refused. Carries the {@link AuditJournal} outcome code
+ * recorded for the rejection.
+ */
+public class TransferRejectedException extends GeneralSecurityException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte outcome;
+
+    public TransferRejectedException(byte outcome, String message) {
+        super(message);
+        this.outcome = outcome;
+    }
+
+    public byte getOutcome() {
+        return outcome;
+    }
+}
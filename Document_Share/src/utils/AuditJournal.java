@@ -0,0 +1,376 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous binary audit journal for transfers and rejections.
+ *
+ * Transfer threads write fixed-size records into a lock-free ring buffer and return at once;
+ * if the buffer is full the record is dropped and counted rather than blocking a transfer. A
+ * single writer thread copies records into memory-mapped segment files (audit-000001.bin, ...)
+ * of {@link #SEGMENT_RECORDS} records each and starts a new segment when one fills up. A
+ * segment is only created once there is a record to put in it, and only the newest
+ * -Daudit.maxSegments segments (default 16, about 75 MB; 0 keeps all) are kept. An idle writer
+ * backs off to {@link #MAX_IDLE_PARK_MS} between checks; producers wake it early when the ring
+ * buffer is half full.
+ *
+ * Record layout (little endian, {@link #RECORD_BYTES} bytes):
+ * <pre>
+ *  0 long  time the record was written (ms since epoch, never 0)
+ *  8 long  payload timestamp (ms)
+ * 16 long  size in bytes (ciphertext)
+ * 24 long  peer key id (first 8 bytes of the SHA-256 of the peer's public key, big endian)
+ * 32 16 B  nonce (decoded; SHA-256 prefix if the nonce is not Base64)
+ * 48 4 x int stage timings in microseconds (receive: read, verify, decrypt, write;
+ *            send: read, encrypt and sign, serialize, send)
+ * 64 byte  type, byte outcome, 6 bytes reserved
+ * </pre>
+ */
+public class AuditJournal {
+
+    public static final byte TYPE_SEND = 1;
+    public static final byte TYPE_RECEIVE = 2;
+    public static final byte TYPE_RELAY = 3;
+    public static final byte TYPE_FAN_OUT = 4;
+
+    public static final byte OK = 0;
+    public static final byte REJECT_MALFORMED = 1;
+    public static final byte REJECT_OVERSIZED = 2;
+    public static final byte REJECT_TIMESTAMP = 3;
+    public static final byte REJECT_REPLAY = 4;
+    public static final byte REJECT_SIGNATURE = 5;
+    public static final byte REJECT_NO_KEY = 6;
+    public static final byte ERROR = 7;
+
+    private static final String[] TYPE_NAMES = {"?", "send", "receive", "relay", "fan-out"};
+    private static final String[] OUTCOME_NAMES = {
+            "ok", "malformed", "oversized", "stale-timestamp", "replay", "bad-signature", "no-key-block", "error"
+    };
+
+    public static final int RECORD_BYTES = 72;
+    public static final int SEGMENT_RECORDS = 65536;
+    private static final int HEADER_BYTES = 16;
+    private static final int MAGIC = 0x41554431; // "AUD1"
+    private static final String SEGMENT_PREFIX = "audit-";
+    private static final String SEGMENT_SUFFIX = ".bin";
+
+    private static final int RING_SIZE = 8192; // power of two
+    private static final int RING_MASK = RING_SIZE - 1;
+    private static final int SLOT_LONGS = RECORD_BYTES / 8;
+    private static final long MAX_IDLE_PARK_MS = 100;
+    private static final int MAX_SEGMENTS = Integer.getInteger("audit.maxSegments", 16);
+
+    // Ring buffer: producers claim a sequence with CAS, fill the slot, then publish it
+    private static final long[] ring = new long[RING_SIZE * SLOT_LONGS];
+    private static final AtomicLongArray published = new AtomicLongArray(RING_SIZE);
+    private static final AtomicLong claimed = new AtomicLong();
+    private static volatile long consumed;
+
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static volatile boolean running;
+    private static volatile Thread writer;
+    private static Path directory;
+    private static int segmentIndex;
+    private static MappedByteBuffer segment; // null until the first record arrives
+    private static boolean pruneSegments;     // writer thread only
+
+    /**
+     * Starts journaling into dir. Until this is called, records are discarded.
+     */
+    public static synchronized void start(File dir) throws IOException {
+        if (running) return;
+
+        directory = dir.toPath();
+        Files.createDirectories(directory);
+        segmentIndex = lastSegmentIndex(directory);
+        segment = null;
+
+        running = true;
+        writer = new Thread(AuditJournal::runWriter, "audit-journal");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(AuditJournal::stop, "audit-journal-shutdown"));
+
+        TransferStats.register("journal.written", written::get);
+        TransferStats.register("journal.dropped", dropped::get);
+        TransferStats.register("journal.backlog", () -> claimed.get() - consumed);
+    }
+
+    /**
+     * Writes out everything still buffered and stops the writer thread.
+     */
+    public static synchronized void stop() {
+        if (!running) return;
+        running = false;
+        LockSupport.unpark(writer);
+
+        // The writer does the final drain itself; only one thread may ever write the segment
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Queues one record. Never blocks: when the ring buffer is full the record is dropped.
+     */
+    public static void record(byte type, byte outcome, long peerKey, String nonce, long payloadTimestamp,
+                              long size, long stage1Nanos, long stage2Nanos, long stage3Nanos, long stage4Nanos) {
+        if (!running) return;
+        // Everything that can fail happens before claiming, so a claimed slot is always published
+        long[] nonceBits = nonceBits(nonce);
+        long now = System.currentTimeMillis();
+
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= RING_SIZE) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & RING_MASK);
+        int base = slot * SLOT_LONGS;
+        ring[base] = now;
+        ring[base + 1] = payloadTimestamp;
+        ring[base + 2] = size;
+        ring[base + 3] = peerKey;
+        ring[base + 4] = nonceBits[0];
+        ring[base + 5] = nonceBits[1];
+        ring[base + 6] = (micros(stage1Nanos) & 0xFFFFFFFFL) | ((long) micros(stage2Nanos) << 32);
+        ring[base + 7] = (micros(stage3Nanos) & 0xFFFFFFFFL) | ((long) micros(stage4Nanos) << 32);
+        ring[base + 8] = (type & 0xFFL) | ((outcome & 0xFFL) << 8);
+
+        // Publishing after the plain writes makes them visible to the writer thread
+        published.lazySet(slot, sequence + 1);
+
+        // The writer may be backing off; don't let a burst fill the buffer while it sleeps
+        if (sequence - consumed >= RING_SIZE / 2) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Returns the first 8 bytes of a public key fingerprint as a peer id, or 0 if key is null.
+     */
+    public static long peerKeyId(byte[] fingerprint) {
+        if (fingerprint == null) return 0;
+        return ByteBuffer.wrap(fingerprint, 0, 8).getLong();
+    }
+
+    // =================== Writer ===================
+
+    private static void runWriter() {
+        long parkMs = 1;
+        while (running) {
+            if (drain()) {
+                parkMs = 1;
+            } else if (pruneSegments) {
+                // Deleting files can take a while, so it waits until nothing is being written
+                pruneSegments = false;
+                deleteOldSegments();
+            } else {
+                LockSupport.parkNanos(parkMs * 1_000_000);
+                parkMs = Math.min(parkMs * 2, MAX_IDLE_PARK_MS);
+            }
+        }
+        // Stopped: write out what is left
+        drain();
+        if (segment != null) segment.force();
+    }
+
+    // Copies all published records into the segment; returns false if there was nothing to do
+    private static boolean drain() {
+        boolean any = false;
+        while (true) {
+            long sequence = consumed;
+            int slot = (int) (sequence & RING_MASK);
+            if (published.get(slot) != sequence + 1) return any;
+
+            if (segment == null || !segment.hasRemaining()) {
+                try {
+                    if (segment != null) segment.force();
+                    openNextSegment();
+                } catch (IOException e) {
+                    // Keep the buffer moving; records are lost rather than stalling transfers
+                    dropped.incrementAndGet();
+                    consumed = sequence + 1;
+                    continue;
+                }
+            }
+
+            int base = slot * SLOT_LONGS;
+            for (int i = 0; i < SLOT_LONGS; i++) {
+                segment.putLong(ring[base + i]);
+            }
+            consumed = sequence + 1;
+            written.incrementAndGet();
+            any = true;
+        }
+    }
+
+    private static void openNextSegment() throws IOException {
+        segmentIndex++;
+        Path file = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, segmentIndex, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) SEGMENT_RECORDS * RECORD_BYTES);
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        segment.putInt(MAGIC).putInt(RECORD_BYTES).putInt(SEGMENT_RECORDS).putInt(0);
+        pruneSegments = MAX_SEGMENTS > 0;
+    }
+
+    // Retention: keeps the newest MAX_SEGMENTS segments, including the one just opened
+    private static void deleteOldSegments() {
+        try {
+            List<Path> files = segments(directory);
+            for (int i = 0; i < files.size() - MAX_SEGMENTS; i++) {
+                Files.deleteIfExists(files.get(i));
+            }
+        } catch (IOException e) {
+            // Retried after the next segment is opened
+        }
+    }
+
+    private static int lastSegmentIndex(Path dir) throws IOException {
+        int last = 0;
+        for (Path file : segments(dir)) {
+            String name = file.getFileName().toString();
+            last = Math.max(last, Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+        return last;
+    }
+
+    // =================== Reading ===================
+
+    /**
+     * One decoded journal record.
+     */
+    public static class Record {
+        public long time;
+        public long payloadTimestamp;
+        public long size;
+        public long peerKey;
+        public byte[] nonce = new byte[16];
+        public int[] stageMicros = new int[4];
+        public byte type;
+        public byte outcome;
+
+        public String typeName() {
+            return type >= 0 && type < TYPE_NAMES.length ? TYPE_NAMES[type] : "?";
+        }
+
+        public String outcomeName() {
+            return outcome >= 0 && outcome < OUTCOME_NAMES.length ? OUTCOME_NAMES[outcome] : "?";
+        }
+
+        public String nonceBase64() {
+            return Base64.getEncoder().encodeToString(nonce);
+        }
+    }
+
+    /**
+     * Returns the segment files in dir, oldest first.
+     */
+    public static List<Path> segments(Path dir) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()).matches("\\d+")) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * Calls consumer for every record in a segment, stopping at the first unwritten slot.
+     * The same Record instance is reused between calls.
+     */
+    public static void read(Path segmentFile, Consumer<Record> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != RECORD_BYTES) {
+                throw new IOException("Not an audit journal segment: " + segmentFile);
+            }
+            buffer.position(HEADER_BYTES);
+
+            Record record = new Record();
+            while (buffer.remaining() >= RECORD_BYTES) {
+                record.time = buffer.getLong();
+                if (record.time == 0) return;
+                record.payloadTimestamp = buffer.getLong();
+                record.size = buffer.getLong();
+                record.peerKey = buffer.getLong();
+                buffer.get(record.nonce);
+                for (int i = 0; i < 4; i++) {
+                    record.stageMicros[i] = buffer.getInt();
+                }
+                record.type = buffer.get();
+                record.outcome = buffer.get();
+                buffer.position(buffer.position() + 6);
+                consumer.accept(record);
+            }
+        }
+    }
+
+    // =================== Helpers ===================
+
+    private static int micros(long nanos) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, nanos / 1000));
+    }
+
+    private static long[] nonceBits(String nonce) {
+        long[] bits = new long[2];
+        if (nonce == null) return bits;
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(nonce);
+        } catch (IllegalArgumentException e) {
+            bytes = nonce.getBytes(StandardCharsets.UTF_8);
+        }
+        if (bytes.length != 16) {
+            try {
+                bytes = MessageDigest.getInstance("SHA-256").digest(bytes);
+            } catch (NoSuchAlgorithmException e) {
+                return bits;
+            }
+        }
+        // Little endian, so the segment (also little endian) holds the nonce bytes in order
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        bits[0] = buffer.getLong();
+        bits[1] = buffer.getLong();
+        return bits;
+    }
+}
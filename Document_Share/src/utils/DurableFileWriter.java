@@ -0,0 +1,232 @@
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Crash-safe file publishing for received files.
+ *
+ * The caller writes the data to a hidden temp file in the target directory and hands it to a
+ * single committer thread, which publishes pending files in batches: it syncs the data of every
+ * file in the batch, links each one under its final (sanitized, collision-free) name and syncs
+ * the directory once. A batch is committed as soon as the committer is free, so files that
+ * arrive while one commit is running form the next batch, and callers using
+ * {@link #writeAsync} do not wait for the commit at all. A crash at any point leaves either
+ * nothing or a complete file under the final name, never a half-written one. Leftover ".part"
+ * files can be deleted safely.
+ */
+public class DurableFileWriter {
+
+    private static final String TEMP_PREFIX = ".incoming-";
+    private static final String TEMP_SUFFIX = ".part";
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final int MAX_PENDING = 1024; // writeAsync blocks beyond this many uncommitted files
+    private static final int MAX_NAME_ATTEMPTS = 10_000;
+
+    private static final LinkedBlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private static final AtomicLong batches = new AtomicLong();
+    private static final AtomicLong published = new AtomicLong();
+    private static Thread committer;
+
+    private static class PendingWrite {
+        final Path tempFile;
+        final Path dir;
+        final String fileName;
+        final CompletableFuture<File> result = new CompletableFuture<>();
+
+        PendingWrite(Path tempFile, Path dir, String fileName) {
+            this.tempFile = tempFile;
+            this.dir = dir;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * Durably writes data into dir under a sanitized version of requestedName and returns the
+     * published file. If the name is taken, a numbered variant such as "report (1).pdf" is used.
+     * Blocks until the file and its directory entry have been synced to disk.
+     */
+    public static File write(File dir, String requestedName, byte[] data) throws IOException {
+        CompletableFuture<File> result = writeAsync(dir, requestedName, data);
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while publishing " + requestedName);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to publish " + requestedName + ": " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Like {@link #write}, but returns once the data is in a temp file. The future completes on
+     * the committer thread when the file is published and synced, so callbacks should be short.
+     * Blocks only while too many files are waiting to be committed.
+     */
+    public static CompletableFuture<File> writeAsync(File dir, String requestedName, byte[] data) throws IOException {
+        Path dirPath = dir.toPath().toAbsolutePath();
+        Files.createDirectories(dirPath);
+
+        // Not synced here; the committer syncs the whole batch
+        Path tempFile = Files.createTempFile(dirPath, TEMP_PREFIX, TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+
+        PendingWrite write = new PendingWrite(tempFile, dirPath, FileUtils.sanitizeFileName(requestedName));
+        ensureCommitter();
+        try {
+            pending.put(write);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteQuietly(tempFile);
+            throw new IOException("Interrupted while publishing " + write.fileName);
+        }
+        return write.result;
+    }
+
+    private static synchronized void ensureCommitter() {
+        if (committer != null) return;
+
+        committer = new Thread(DurableFileWriter::runCommitter, "durable-file-writer");
+        committer.setDaemon(true);
+        committer.start();
+
+        TransferStats.register("writer.pending", pending::size);
+        TransferStats.register("writer.batches", batches::get);
+        TransferStats.register("writer.published", published::get);
+    }
+
+    private static void runCommitter() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            // Group commit: everything that queued up during the previous commit goes in this
+            // batch; an idle writer commits a lone file at once instead of waiting for company
+            pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            try {
+                commit(batch);
+            } catch (RuntimeException e) {
+                // commit() fails single writes itself; never let anything end the committer
+                for (PendingWrite write : batch) {
+                    if (write.result.completeExceptionally(e)) deleteQuietly(write.tempFile);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private static void commit(List<PendingWrite> batch) {
+        List<PendingWrite> linked = new ArrayList<>();
+        List<File> targets = new ArrayList<>();
+        Set<Path> dirs = new LinkedHashSet<>();
+
+        // 1. Sync the data of every file in the batch, back to back
+        List<PendingWrite> synced = new ArrayList<>();
+        for (PendingWrite write : batch) {
+            try (FileChannel channel = FileChannel.open(write.tempFile, StandardOpenOption.WRITE)) {
+                channel.force(false);
+                synced.add(write);
+            } catch (IOException | RuntimeException e) {
+                deleteQuietly(write.tempFile);
+                write.result.completeExceptionally(e);
+            }
+        }
+
+        // 2. Link under final names; 3. one directory sync makes every link in the batch durable
+        for (PendingWrite write : synced) {
+            try {
+                targets.add(publish(write));
+                linked.add(write);
+                dirs.add(write.dir);
+            } catch (IOException | RuntimeException e) {
+                // e.g. InvalidPathException for a name the platform cannot represent
+                deleteQuietly(write.tempFile);
+                write.result.completeExceptionally(e);
+            }
+        }
+
+        IOException syncError = null;
+        for (Path dir : dirs) {
+            try {
+                syncDirectory(dir);
+            } catch (IOException e) {
+                syncError = e;
+            }
+        }
+
+        for (int i = 0; i < linked.size(); i++) {
+            if (syncError != null) {
+                linked.get(i).result.completeExceptionally(syncError);
+            } else {
+                linked.get(i).result.complete(targets.get(i));
+            }
+        }
+        batches.incrementAndGet();
+        published.addAndGet(linked.size());
+    }
+
+    // Links the temp file under the first free name. Linking fails instead of overwriting when
+    // the name exists, which also keeps other processes writing to the same directory safe.
+    private static File publish(PendingWrite write) throws IOException {
+        String base = FileUtils.baseName(write.fileName);
+        String extension = FileUtils.extension(write.fileName);
+
+        for (int attempt = 0; attempt < MAX_NAME_ATTEMPTS; attempt++) {
+            String name = attempt == 0 ? write.fileName : base + " (" + attempt + ")" + extension;
+            Path target = write.dir.resolve(name);
+            try {
+                Files.createLink(target, write.tempFile);
+                Files.delete(write.tempFile);
+                return target.toFile();
+            } catch (FileAlreadyExistsException e) {
+                // Name taken, try the next one
+            } catch (UnsupportedOperationException e) {
+                // No hard links on this file system; fall back to an atomic rename
+                if (Files.exists(target)) continue;
+                Files.move(write.tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+                return target.toFile();
+            }
+        }
+        throw new IOException("No free file name for " + write.fileName + " in " + write.dir);
+    }
+
+    private static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException | UnsupportedOperationException e) {
+            // Directories cannot be opened for sync on some platforms (e.g. Windows)
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package utils;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
 
 
 public class FileUtils {
@@ -27,4 +30,100 @@ public class FileUtils {
         }
     }
 
+    // Most file systems allow 255 bytes per name; the rest is left for a " (n)" collision suffix
+    private static final int MAX_FILE_NAME_BYTES = 240;
+    private static final int MAX_EXTENSION_BYTES = 20;
+    private static final String[] RESERVED_NAMES = {
+            "CON", "PRN", "AUX", "NUL",
+            "COM1", "COM2", "COM3", "COM4", "COM5", "COM6", "COM7", "COM8", "COM9",
+            "LPT1", "LPT2", "LPT3", "LPT4", "LPT5", "LPT6", "LPT7", "LPT8", "LPT9"
+    };
+
+    /**
+     * Reduces an untrusted (sender supplied) file name to a single safe path segment:
+     * directory parts, control and reserved characters and leading dots are removed, characters
+     * the platform cannot put in a file name are replaced and the name is cut to
+     * {@link #MAX_FILE_NAME_BYTES} bytes in the platform encoding.
+     */
+    public static String sanitizeFileName(String fileName) {
+        String name = fileName == null ? "" : fileName;
+
+        // Keep only the last path segment, whichever separator the sender used
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        name = name.substring(slash + 1);
+
+        CharsetEncoder encoder = fileNameCharset().newEncoder();
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); ) {
+            int c = name.codePointAt(i);
+            i += Character.charCount(c);
+            // Lone surrogates and unencodable characters would make the path invalid
+            if (c < 0x20 || c == 0x7F || "<>:\"|?*".indexOf(c) >= 0
+                    || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) || !encoder.canEncode(new String(Character.toChars(c)))) {
+                sb.append('_');
+            } else {
+                sb.appendCodePoint(c);
+            }
+        }
+        name = sb.toString().trim();
+
+        // No hidden files, "." or ".."
+        while (name.startsWith(".")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty()) {
+            name = "unnamed";
+        }
+
+        String base = baseName(name);
+        for (String reserved : RESERVED_NAMES) {
+            if (reserved.equalsIgnoreCase(base)) {
+                name = "_" + name;
+                break;
+            }
+        }
+
+        if (encodedLength(name) > MAX_FILE_NAME_BYTES) {
+            String extension = extension(name);
+            if (encodedLength(extension) > MAX_EXTENSION_BYTES) extension = "";
+            String stem = name.substring(0, name.length() - extension.length());
+            int limit = MAX_FILE_NAME_BYTES - encodedLength(extension);
+            // Drop whole code points from the end until the name fits
+            while (encodedLength(stem) > limit) {
+                stem = stem.substring(0, stem.offsetByCodePoints(stem.length(), -1));
+            }
+            name = stem + extension;
+        }
+        return name;
+    }
+
+    private static int encodedLength(String s) {
+        return s.getBytes(fileNameCharset()).length;
+    }
+
+    // The charset the JVM uses to turn path strings into bytes
+    private static Charset fileNameCharset() {
+        try {
+            return Charset.forName(System.getProperty("sun.jnu.encoding", "UTF-8"));
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * Returns the name without its extension, e.g. "report" for "report.pdf".
+     */
+    public static String baseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    /**
+     * Returns the extension including the dot, e.g. ".pdf", or an empty string.
+     */
+    public static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(dot) : "";
+    }
+
 }
\ No newline at end of file
@@ -87,6 +87,17 @@ public class RSAUtils {
         return sig.verify(signature);
     }
 
+    /**
+     * Computes a stable identifier for a public key (SHA-256 of its X.509 encoding).
+     *
+     * @param publicKey RSA public key
+     * @return 32-byte key fingerprint
+     * @throws GeneralSecurityException if SHA-256 is not available
+     */
+    public static byte[] fingerprint(PublicKey publicKey) throws GeneralSecurityException {
+        return MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded());
+    }
+
     /**
      * Converts byte array to Base64-encoded string.
      */
@@ -0,0 +1,225 @@
+package utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replay-protection nonce table shared by several processes through a memory-mapped file.
+ *
+ * The table is an open-addressing hash table of fixed 16-byte slots: an 8-byte state and an
+ * 8-byte fingerprint of the nonce (first 8 bytes of its SHA-256). A state is 0 for a never used
+ * slot, minus the claim time (ms) while a process is filling the slot, and otherwise the time
+ * (ms) after which the nonce can no longer be replayed and the slot may be reused. Slots are
+ * claimed with compare-and-set on the shared memory, so no locks are held between processes.
+ *
+ * A nonce lives within {@link #PROBE_WINDOW} slots of its home slot, and lookups always scan
+ * that whole window. Expired slots are therefore exactly as free as never used ones and no
+ * chain can grow over time, so the cost of a lookup stays the same however long the file has
+ * been in use. A nonce whose window holds no free slot is rejected as if the table were full.
+ * A claim older than {@link #CLAIM_TIMEOUT_MS} was left by a process that died mid-write and
+ * is reused like an expired slot.
+ *
+ * Two processes registering the same nonce at the same moment can both claim a slot. After
+ * claiming, each one re-scans the window; seeing another live slot with the same fingerprint
+ * means it lost, and the nonce is treated as a replay. At least one of the two always sees the
+ * other, so a nonce is never accepted twice.
+ */
+public class SharedNonceTable implements Closeable {
+
+    private static final long MAGIC = 0x4E4F4E4345544231L; // "NONCETB1"
+    private static final int HEADER_BYTES = 64;
+    private static final int SLOT_BYTES = 16;
+    private static final int MAX_SLOTS = 1 << 26; // 1 GB table
+    private static final long EMPTY = 0;
+    private static final int PROBE_WINDOW = 64;
+    private static final long CLAIM_TIMEOUT_MS = 10_000;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final int window;
+    private final AtomicLong fullRejections = new AtomicLong();
+
+    private SharedNonceTable(FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.window = Math.min(capacity, PROBE_WINDOW);
+    }
+
+    /**
+     * Opens the table at file, creating it with the given number of slots (rounded up to a
+     * power of two) if it does not exist. An existing table keeps its own size.
+     */
+    public static SharedNonceTable open(Path file, int capacity) throws IOException {
+        int slots = Integer.highestOneBit(Math.min(Math.max(capacity - 1, 1), MAX_SLOTS - 1)) << 1;
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer;
+            // Only initialization is locked, so two processes never both set up the file
+            FileLock lock = channel.lock();
+            try {
+                boolean exists = channel.size() >= HEADER_BYTES;
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+                header.order(ByteOrder.nativeOrder());
+                if (exists && header.getLong(0) == MAGIC) {
+                    slots = (int) header.getLong(8);
+                }
+
+                // Mapping past the end grows the file with zeros: every new slot starts out EMPTY
+                long size = HEADER_BYTES + (long) slots * SLOT_BYTES;
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+                if (header.getLong(0) != MAGIC) {
+                    header.putLong(8, slots);
+                    header.putLong(0, MAGIC);
+                    header.force();
+                }
+            } finally {
+                lock.release();
+            }
+
+            SharedNonceTable table = new SharedNonceTable(channel, buffer, slots);
+            TransferStats.register("nonces.capacity", () -> table.capacity);
+            TransferStats.register("nonces.full", table.fullRejections::get);
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true if the nonce is recorded and has not expired.
+     */
+    public boolean contains(String nonce) {
+        long fingerprint = fingerprint(nonce);
+        long now = System.currentTimeMillis();
+        int home = home(fingerprint);
+        for (int i = 0; i < window; i++) {
+            int slot = (home + i) & mask;
+            if (isLive(state(slot), now) && fingerprint(slot) == fingerprint) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the nonce until expiresAtMillis. Returns false if it is already recorded by this
+     * or any other process (a replay), or if the nonce's probe window has no free slot left.
+     */
+    public boolean register(String nonce, long expiresAtMillis) {
+        long fingerprint = fingerprint(nonce);
+        int home = home(fingerprint);
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            int target = -1;
+            long expected = EMPTY;
+
+            for (int i = 0; i < window; i++) {
+                int slot = (home + i) & mask;
+                long state = state(slot);
+                if (isFree(state, now)) {
+                    // Reusable, but keep scanning for a live copy of this nonce
+                    if (target < 0) {
+                        target = slot;
+                        expected = state;
+                    }
+                    continue;
+                }
+                if (state > 0 && fingerprint(slot) == fingerprint) return false;
+            }
+
+            if (target < 0) {
+                fullRejections.incrementAndGet();
+                return false;
+            }
+            long claim = -now;
+            if (!LONGS.compareAndSet(buffer, offset(target), expected, claim)) {
+                continue; // Lost the slot to another process, scan again
+            }
+            LONGS.setVolatile(buffer, offset(target) + 8, fingerprint);
+            if (!LONGS.compareAndSet(buffer, offset(target), claim, expiresAtMillis)) {
+                continue; // Stalled past the claim timeout and the slot was taken over
+            }
+
+            return !liveDuplicateExists(fingerprint, home, target);
+        }
+    }
+
+    private boolean liveDuplicateExists(long fingerprint, int home, int ownSlot) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < window; i++) {
+            int slot = (home + i) & mask;
+            if (slot != ownSlot && isLive(state(slot), now) && fingerprint(slot) == fingerprint) return true;
+        }
+        return false;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static boolean isLive(long state, long now) {
+        return state > 0 && state >= now;
+    }
+
+    // Never used, expired, or claimed by a process that did not finish within the timeout
+    private static boolean isFree(long state, long now) {
+        if (state == EMPTY) return true;
+        if (state < 0) return -state < now - CLAIM_TIMEOUT_MS;
+        return state < now;
+    }
+
+    private long state(int slot) {
+        return (long) LONGS.getVolatile(buffer, offset(slot));
+    }
+
+    private long fingerprint(int slot) {
+        return (long) LONGS.getVolatile(buffer, offset(slot) + 8);
+    }
+
+    private static int offset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private int home(long fingerprint) {
+        return (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+    }
+
+    private static long fingerprint(String nonce) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(nonce.getBytes(StandardCharsets.UTF_8));
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (digest[i] & 0xFF);
+            }
+            return value;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package utils;
+
+/**
+ * Token bucket measured in bytes. A rate of 0 means unlimited.
+ *
+ * The bucket may go into debt: a request is granted as soon as the balance is positive and the
+ * whole request is subtracted, so chunks larger than the burst size never wait forever while the
+ * long-term rate stays exact. Not thread-safe; callers synchronize.
+ */
+public class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private long rate;      // bytes per second
+    private double burst;   // maximum saved-up bytes
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long bytesPerSecond) {
+        lastRefill = System.nanoTime();
+        setRate(bytesPerSecond);
+        tokens = burst;
+    }
+
+    /**
+     * Changes the rate, keeping the current balance (capped to the new burst size).
+     */
+    public void setRate(long bytesPerSecond) {
+        refill(System.nanoTime());
+        rate = Math.max(0, bytesPerSecond);
+        burst = Math.max(1, rate / 10.0); // up to 100 ms worth of traffic
+        tokens = Math.min(tokens, burst);
+    }
+
+    public long getRate() {
+        return rate;
+    }
+
+    public boolean isUnlimited() {
+        return rate == 0;
+    }
+
+    /**
+     * Returns true if a request could be granted right now.
+     */
+    public boolean canConsume(long now) {
+        if (isUnlimited()) return true;
+        refill(now);
+        return tokens > 0;
+    }
+
+    /**
+     * Returns true if the bucket has its full burst saved up, i.e. it owes nothing.
+     */
+    public boolean isFull(long now) {
+        if (isUnlimited()) return true;
+        refill(now);
+        return tokens >= burst;
+    }
+
+    public void consume(long bytes) {
+        if (!isUnlimited()) tokens -= bytes;
+    }
+
+    /**
+     * Nanoseconds until the balance becomes positive again (0 if it already is).
+     */
+    public long nanosUntilAvailable(long now) {
+        if (isUnlimited()) return 0;
+        refill(now);
+        if (tokens > 0) return 0;
+        return (long) Math.ceil((1 - tokens) * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,418 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shapes outgoing transfers: a global and per-peer byte rate (token buckets) and weighted
+ * fair queuing between concurrent transfers.
+ *
+ * Every transfer is a {@link Flow} that writes its data in chunks. Before each chunk the flow
+ * asks for a grant; waiting chunks are served in order of their virtual finish time
+ * (start + bytes / weight), so a flow's share of the bandwidth is proportional to its weight
+ * regardless of its chunk count. Small transfers go through a separate lane whose flows count
+ * with -Dtransfer.smallLaneWeight (default 4) times their weight, so they finish quickly next
+ * to bulk transfers without starving them. After a grant only the chunk that is now eligible is
+ * woken; while no chunk has tokens, the first waiting chunk sleeps until the earliest refill
+ * and the others sleep until woken. Limits can be changed at any time and take effect on the
+ * next chunk. A rate of 0 means unlimited, which is the default. While every rate is unlimited,
+ * chunks are written straight through without queuing for a grant.
+ *
+ * Defaults can also be set with -Dtransfer.globalRate, -Dtransfer.peerRate and
+ * -Dtransfer.smallFileBytes (bytes per second / bytes).
+ */
+public class TransferScheduler {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int UNSHAPED_CHUNK_SIZE = 1024 * 1024; // write size while nothing is limited
+    private static final int PRUNE_INTERVAL = 256;               // closes between sweeps of idle buckets
+    private static final int SMALL_LANE = 0;
+    private static final int BULK_LANE = 1;
+    private static final long MAX_IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // guards against a missed wake-up
+    private static final int SMALL_LANE_WEIGHT = Math.max(1, Integer.getInteger("transfer.smallLaneWeight", 4));
+
+    private static final ReentrantLock lock = new ReentrantLock(true);
+
+    // Guarded by lock
+    private static final TokenBucket globalBucket = new TokenBucket(Long.getLong("transfer.globalRate", 0));
+    private static final Map<String, TokenBucket> peerBuckets = new ConcurrentHashMap<>();
+    private static final Map<String, Long> peerRates = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> peerFlows = new HashMap<>(); // open flows per peer
+    private static final TreeSet<Request> waiting = new TreeSet<>();
+    private static long closedFlows;
+    private static long defaultPeerRate = Long.getLong("transfer.peerRate", 0);
+    private static double virtualTime;
+    private static long requestSequence;
+
+    // False while the global and all peer rates are 0; flows then skip the fair queue entirely
+    private static volatile boolean shaping = globalBucket.getRate() > 0 || defaultPeerRate > 0;
+
+    private static volatile long smallFileBytes = Long.getLong("transfer.smallFileBytes", 256 * 1024);
+
+    private static final AtomicLong activeFlows = new AtomicLong();
+    private static final AtomicLong bytesSent = new AtomicLong();
+    private static final AtomicLong smallBytesSent = new AtomicLong();
+    private static final AtomicLong throttledNanos = new AtomicLong();
+    private static final RateMeter currentRate = new RateMeter();
+
+    static {
+        TransferStats.register("scheduler.flows.active", activeFlows::get);
+        TransferStats.register("scheduler.chunks.waiting", TransferScheduler::waitingCount);
+        TransferStats.register("scheduler.bytes.sent", bytesSent::get);
+        TransferStats.register("scheduler.bytes.small", smallBytesSent::get);
+        TransferStats.register("scheduler.throttled.ms", () -> TimeUnit.NANOSECONDS.toMillis(throttledNanos.get()));
+        TransferStats.register("scheduler.rate.limit", TransferScheduler::getGlobalRate);
+        TransferStats.register("scheduler.rate.current", currentRate::bytesPerSecond);
+        TransferStats.register("scheduler.peers", TransferScheduler::peerBucketCount);
+    }
+
+    /**
+     * One outgoing transfer. Close it when the transfer ends.
+     */
+    public static class Flow implements AutoCloseable {
+        private final String peer;
+        private final int weight;
+        private final int lane;
+        private double lastFinish; // guarded by lock
+        private boolean closed;
+
+        private Flow(String peer, int weight, int lane) {
+            this.peer = peer;
+            this.weight = weight;
+            this.lane = lane;
+        }
+
+        /**
+         * Writes data to out in chunks, waiting for a grant before each chunk. While nothing is
+         * rate limited, chunks are written without a grant.
+         */
+        public void write(OutputStream out, byte[] data) throws IOException {
+            write(out, data, 0, data.length);
+        }
+
+        public void write(OutputStream out, byte[] data, int offset, int length) throws IOException {
+            int end = offset + length;
+            int chunk;
+            for (int pos = offset; pos < end; pos += chunk) {
+                if (!shaping) {
+                    // Checked per chunk, so a limit set mid-transfer applies to the rest of it
+                    chunk = Math.min(UNSHAPED_CHUNK_SIZE, end - pos);
+                } else {
+                    chunk = Math.min(CHUNK_SIZE, end - pos);
+                    try {
+                        acquire(this, chunk);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for bandwidth");
+                    }
+                }
+                out.write(data, pos, chunk);
+                bytesSent.addAndGet(chunk);
+                if (lane == SMALL_LANE) smallBytesSent.addAndGet(chunk);
+                currentRate.record(chunk);
+            }
+            out.flush();
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public boolean isSmall() {
+            return lane == SMALL_LANE;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                activeFlows.decrementAndGet();
+                flowClosed(peer);
+            }
+        }
+    }
+
+    // A chunk waiting for its grant
+    private static class Request implements Comparable<Request> {
+        final Flow flow;
+        final int bytes;
+        final double startTag;
+        final double finishTag;
+        final long sequence;
+        final Condition ready = lock.newCondition();
+
+        Request(Flow flow, int bytes, double startTag, double finishTag, long sequence) {
+            this.flow = flow;
+            this.bytes = bytes;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int byTag = Double.compare(finishTag, other.finishTag);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * Opens a flow with weight 1. Transfers of at most the small-file threshold use the
+     * small lane.
+     */
+    public static Flow open(String peer, long totalBytes) {
+        return open(peer, totalBytes, 1);
+    }
+
+    public static Flow open(String peer, long totalBytes, int weight) {
+        if (weight <= 0) throw new IllegalArgumentException("Weight must be positive: " + weight);
+        activeFlows.incrementAndGet();
+        lock.lock();
+        try {
+            peerFlows.merge(peer, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+        int lane = totalBytes <= smallFileBytes ? SMALL_LANE : BULK_LANE;
+        return new Flow(peer, weight, lane);
+    }
+
+    // =================== Runtime configuration ===================
+
+    public static void setGlobalRate(long bytesPerSecond) {
+        lock.lock();
+        try {
+            globalBucket.setRate(bytesPerSecond);
+            updateShaping();
+            wakeAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static long getGlobalRate() {
+        lock.lock();
+        try {
+            return globalBucket.getRate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the rate for one peer ("host:port"), overriding the default peer rate.
+     */
+    public static void setPeerRate(String peer, long bytesPerSecond) {
+        lock.lock();
+        try {
+            peerRates.put(peer, bytesPerSecond);
+            TokenBucket bucket = peerBuckets.get(peer);
+            if (bucket != null) bucket.setRate(bytesPerSecond);
+            updateShaping();
+            wakeAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the rate for every peer without an explicit rate of its own.
+     */
+    public static void setDefaultPeerRate(long bytesPerSecond) {
+        lock.lock();
+        try {
+            defaultPeerRate = bytesPerSecond;
+            for (Map.Entry<String, TokenBucket> entry : peerBuckets.entrySet()) {
+                if (!peerRates.containsKey(entry.getKey())) entry.getValue().setRate(bytesPerSecond);
+            }
+            updateShaping();
+            wakeAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static long getDefaultPeerRate() {
+        lock.lock();
+        try {
+            return defaultPeerRate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public static void setSmallFileThreshold(long bytes) {
+        smallFileBytes = bytes;
+    }
+
+    public static long getSmallFileThreshold() {
+        return smallFileBytes;
+    }
+
+    // Guarded by lock
+    private static void updateShaping() {
+        boolean limited = globalBucket.getRate() > 0 || defaultPeerRate > 0;
+        for (long rate : peerRates.values()) {
+            limited |= rate > 0;
+        }
+        shaping = limited;
+    }
+
+    // =================== Scheduling ===================
+
+    private static void acquire(Flow flow, int bytes) throws InterruptedException {
+        long waitStart = System.nanoTime();
+        lock.lockInterruptibly();
+        try {
+            double startTag = Math.max(virtualTime, flow.lastFinish);
+            double share = (double) flow.weight * (flow.lane == SMALL_LANE ? SMALL_LANE_WEIGHT : 1);
+            Request request = new Request(flow, bytes, startTag, startTag + bytes / share, requestSequence++);
+            flow.lastFinish = request.finishTag;
+            waiting.add(request);
+
+            try {
+                while (true) {
+                    long now = System.nanoTime();
+                    Request next = nextEligible(now);
+                    if (next == request) {
+                        waiting.remove(request);
+                        virtualTime = Math.max(virtualTime, request.startTag);
+                        globalBucket.consume(bytes);
+                        peerBucket(flow.peer).consume(bytes);
+                        wakeNext(now);
+                        break;
+                    }
+                    if (next != null) {
+                        // Another chunk goes first; it wakes the next one once it is granted
+                        next.ready.signal();
+                        request.ready.awaitNanos(MAX_WAIT_NANOS);
+                    } else if (waiting.first() == request) {
+                        // Nothing has tokens: the first chunk waits for the earliest refill
+                        request.ready.awaitNanos(Math.max(1, Math.min(MAX_IDLE_WAIT_NANOS, nanosUntilAnyEligible(now))));
+                    } else {
+                        request.ready.awaitNanos(MAX_WAIT_NANOS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(request);
+                wakeNext(System.nanoTime());
+                throw e;
+            }
+        } finally {
+            lock.unlock();
+        }
+        throttledNanos.addAndGet(System.nanoTime() - waitStart);
+    }
+
+    // Wakes the chunk that may go now or, if none has tokens, the first chunk to wait for a refill
+    private static void wakeNext(long now) {
+        if (waiting.isEmpty()) return;
+        Request next = nextEligible(now);
+        (next != null ? next : waiting.first()).ready.signal();
+    }
+
+    // After a limit change any chunk may have become eligible
+    private static void wakeAll() {
+        for (Request request : waiting) {
+            request.ready.signal();
+        }
+    }
+
+    // First waiting chunk, in finish-tag order, whose peer and the global bucket have tokens
+    private static Request nextEligible(long now) {
+        if (!globalBucket.canConsume(now)) return null;
+        for (Request request : waiting) {
+            if (peerBucket(request.flow.peer).canConsume(now)) return request;
+        }
+        return null;
+    }
+
+    private static long nanosUntilAnyEligible(long now) {
+        long peerWait = Long.MAX_VALUE;
+        for (Request request : waiting) {
+            peerWait = Math.min(peerWait, peerBucket(request.flow.peer).nanosUntilAvailable(now));
+        }
+        return Math.max(globalBucket.nanosUntilAvailable(now), peerWait);
+    }
+
+    // Drops the peer's bucket once its last flow closes, unless it still owes tokens; owing
+    // buckets are dropped by a later sweep once they have refilled
+    private static void flowClosed(String peer) {
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            if (peerFlows.merge(peer, -1, Integer::sum) <= 0) {
+                peerFlows.remove(peer);
+                TokenBucket bucket = peerBuckets.get(peer);
+                if (bucket != null && bucket.isFull(now)) peerBuckets.remove(peer);
+            }
+            if (++closedFlows % PRUNE_INTERVAL == 0) {
+                peerBuckets.entrySet().removeIf(entry ->
+                        !peerFlows.containsKey(entry.getKey()) && entry.getValue().isFull(now));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long peerBucketCount() {
+        lock.lock();
+        try {
+            return peerBuckets.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static TokenBucket peerBucket(String peer) {
+        return peerBuckets.computeIfAbsent(peer,
+                p -> new TokenBucket(peerRates.getOrDefault(p, defaultPeerRate)));
+    }
+
+    private static long waitingCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Bytes per second over the last completed one-second window
+    private static class RateMeter {
+        private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+        private long lastRate;
+
+        synchronized void record(long bytes) {
+            roll(System.nanoTime());
+            windowBytes += bytes;
+        }
+
+        synchronized long bytesPerSecond() {
+            roll(System.nanoTime());
+            return lastRate;
+        }
+
+        private void roll(long now) {
+            long elapsed = now - windowStart;
+            if (elapsed >= WINDOW_NANOS) {
+                // An idle gap longer than one window means the last window saw nothing
+                lastRate = elapsed >= 2 * WINDOW_NANOS ? 0 : windowBytes * WINDOW_NANOS / elapsed;
+                windowBytes = 0;
+                windowStart = now;
+            }
+        }
+    }
+}
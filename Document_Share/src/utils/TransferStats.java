@@ -0,0 +1,60 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide registry of live transfer metrics (queue depths, counters, rates).
+ * Components register named gauges once and callers read them all through one surface.
+ */
+public class TransferStats {
+
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentSkipListMap<>();
+
+    /**
+     * Registers (or replaces) a gauge that is sampled every time stats are read.
+     */
+    public static void register(String name, LongSupplier gauge) {
+        GAUGES.put(name, gauge);
+    }
+
+    /**
+     * Removes every gauge whose name starts with the given prefix.
+     */
+    public static void unregister(String prefix) {
+        GAUGES.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Samples all registered gauges, ordered by name.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> entry : GAUGES.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * Formats a snapshot as a single "name=value" line for logging.
+     */
+    public static String format() {
+        return format("");
+    }
+
+    /**
+     * Formats only the gauges whose name starts with prefix, e.g. "scheduler.".
+     */
+    public static String format(String prefix) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) continue;
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}